@@ -0,0 +1,139 @@
+package com.kartographia.map;
+import javaxt.io.Directory;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.*;
+
+//******************************************************************************
+//**  DirectoryTileStore
+//******************************************************************************
+/**
+ *   Used to store image tiles as individual files in a directory. The path
+ *   to each file is derived from the tile key (e.g. "{dir}/{key}.png"). New
+ *   files are written to a "_temp" directory and moved into place so that
+ *   readers never see a partially written file.
+ *
+ ******************************************************************************/
+
+public class DirectoryTileStore implements TileStore {
+
+    private Directory dir;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+    public DirectoryTileStore(Directory dir){
+        if (!dir.exists()) dir.create();
+        if (!dir.exists()) throw new IllegalArgumentException("Invalid directory");
+        this.dir = dir;
+    }
+
+
+  //**************************************************************************
+  //** getDirectory
+  //**************************************************************************
+    public Directory getDirectory(){
+        return dir;
+    }
+
+
+  //**************************************************************************
+  //** getFile
+  //**************************************************************************
+  /** Returns the file used to store a tile with the given key
+   */
+    public javaxt.io.File getFile(String key){
+        return new javaxt.io.File(dir + key + ".png");
+    }
+
+
+  //**************************************************************************
+  //** exists
+  //**************************************************************************
+    public boolean exists(String key){
+        return getFile(key).exists();
+    }
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+    public ByteBuffer read(String key) throws IOException {
+        try{
+            return ByteBuffer.wrap(Files.readAllBytes(getPath(key)));
+        }
+        catch(NoSuchFileException e){
+            return null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** transferTo
+  //**************************************************************************
+  /** Used to write a tile to a channel using FileChannel.transferTo() which
+   *  allows the operating system to copy the file directly to the target
+   *  (e.g. sendfile) without copying the bytes into the Java heap.
+   */
+    public long transferTo(String key, WritableByteChannel target) throws IOException {
+        FileChannel channel;
+        try{
+            channel = FileChannel.open(getPath(key), StandardOpenOption.READ);
+        }
+        catch(NoSuchFileException e){
+            return -1;
+        }
+        try{
+            return TileStore.transferTo(channel, 0, channel.size(), target);
+        }
+        finally{
+            channel.close();
+        }
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+    public void write(String key, byte[] bytes) throws IOException {
+        Path path = getPath(key);
+        Path dir = path.getParent();
+        Path tempDir = dir.resolve("_temp");
+        Files.createDirectories(dir);
+        Files.createDirectories(tempDir);
+
+        Path tmp = tempDir.resolve(path.getFileName() + ".tmp");
+        Files.write(tmp, bytes);
+        try{
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(AtomicMoveNotSupportedException e){
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+
+  //**************************************************************************
+  //** delete
+  //**************************************************************************
+    public void delete(String key) throws IOException {
+        Files.deleteIfExists(getPath(key));
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+    public void close(){}
+
+
+  //**************************************************************************
+  //** getPath
+  //**************************************************************************
+    private Path getPath(String key){
+        return getFile(key).toFile().toPath();
+    }
+}
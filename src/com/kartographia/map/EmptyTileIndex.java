@@ -0,0 +1,354 @@
+package com.kartographia.map;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+
+//******************************************************************************
+//**  EmptyTileIndex
+//******************************************************************************
+/**
+ *   Used to keep track of tiles that are known to be empty so that empty
+ *   tiles don't need to be stored on disk or re-rendered. Tile keys are
+ *   stored as 128-bit fingerprints (two independent 64-bit hashes) in an
+ *   open-addressing hash set (16 bytes per tile). With a billion empty
+ *   tiles, the odds of two keys sharing a fingerprint are roughly 1 in
+ *   10^20, so a real tile is never mistaken for an empty one in practice.
+ *   <p/>
+ *   Changes are appended to a log file which is replayed when the index is
+ *   opened. The log is compacted on open if it contains a large number of
+ *   removed entries. Compaction writes a new log to a temp file which then
+ *   replaces the original so the index survives a crash mid-compaction.
+ *
+ ******************************************************************************/
+
+public class EmptyTileIndex {
+
+    private long[] table = new long[2048]; //pairs of hashes (h1, h2)
+    private int size = 0;
+    private Path path;
+    private FileChannel log;
+    private long numRecords = 0;
+
+    private static final long MAGIC = 0x4554494458000002L; //"ETIDX", version 2
+    private static final int HEADER_SIZE = 8;
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final int RECORD_SIZE = 17;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param file File used to persist the index. The file is created if it
+   *  doesn't exist. Files created by older versions of this class are
+   *  discarded (the tiles will simply be rendered again).
+   */
+    public EmptyTileIndex(javaxt.io.File file) throws IOException {
+        path = file.toFile().toPath();
+        Path dir = path.getParent();
+        if (dir!=null) Files.createDirectories(dir);
+        log = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+
+      //Check header
+        long length = log.size();
+        if (length<HEADER_SIZE || readHeader()!=MAGIC){
+            compact();
+            return;
+        }
+
+
+      //Replay log
+        long validLength = HEADER_SIZE + ((length-HEADER_SIZE) - ((length-HEADER_SIZE) % RECORD_SIZE));
+        ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE*4096);
+        long position = HEADER_SIZE;
+        while (position<validLength){
+            buffer.clear();
+            if (validLength-position<buffer.capacity()){
+                buffer.limit((int) (validLength-position));
+            }
+            while (buffer.hasRemaining()){
+                if (log.read(buffer, position+buffer.position())<0) break;
+            }
+            buffer.flip();
+            while (buffer.remaining()>=RECORD_SIZE){
+                byte op = buffer.get();
+                long h1 = buffer.getLong();
+                long h2 = buffer.getLong();
+                if (op==ADD) addHash(h1, h2);
+                else if (op==REMOVE) removeHash(h1, h2);
+            }
+            position += buffer.limit();
+        }
+        if (validLength<length) log.truncate(validLength);
+        numRecords = (validLength-HEADER_SIZE)/RECORD_SIZE;
+
+
+      //Compact log as needed
+        if (numRecords>1024 && numRecords>size*2L) compact();
+    }
+
+
+  //**************************************************************************
+  //** contains
+  //**************************************************************************
+  /** Returns true if the tile associated with the given key is empty
+   */
+    public synchronized boolean contains(String key){
+        long h1 = hash1(key);
+        long h2 = hash2(key);
+        int mask = table.length-1;
+        int i = slot(h1, mask);
+        while (table[i]!=0){
+            if (table[i]==h1 && table[i+1]==h2) return true;
+            i = (i+2) & mask;
+        }
+        return false;
+    }
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to mark a tile as empty
+   */
+    public synchronized void add(String key) throws IOException {
+        long h1 = hash1(key);
+        long h2 = hash2(key);
+        if (addHash(h1, h2)) append(ADD, h1, h2);
+    }
+
+
+  //**************************************************************************
+  //** remove
+  //**************************************************************************
+  /** Used to remove a tile from the index (e.g. when a tile is deleted)
+   */
+    public synchronized void remove(String key) throws IOException {
+        long h1 = hash1(key);
+        long h2 = hash2(key);
+        if (removeHash(h1, h2)) append(REMOVE, h1, h2);
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of empty tiles in the index
+   */
+    public synchronized int size(){
+        return size;
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+    public synchronized void close() throws IOException {
+        log.close();
+    }
+
+
+  //**************************************************************************
+  //** addHash
+  //**************************************************************************
+    private boolean addHash(long h1, long h2){
+        if ((size+1)*8L>table.length*3L) resize(table.length*2);
+        int mask = table.length-1;
+        int i = slot(h1, mask);
+        while (table[i]!=0){
+            if (table[i]==h1 && table[i+1]==h2) return false;
+            i = (i+2) & mask;
+        }
+        table[i] = h1;
+        table[i+1] = h2;
+        size++;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** removeHash
+  //**************************************************************************
+  /** Removes a fingerprint from the table using backward shift deletion so
+   *  that no tombstones are needed
+   */
+    private boolean removeHash(long h1, long h2){
+        int mask = table.length-1;
+        int i = slot(h1, mask);
+        while (table[i]!=h1 || table[i+1]!=h2){
+            if (table[i]==0) return false;
+            i = (i+2) & mask;
+        }
+
+        int j = i;
+        while (true){
+            j = (j+2) & mask;
+            if (table[j]==0) break;
+            int k = slot(table[j], mask);
+            if ((j>i && (k<=i || k>j)) || (j<i && (k<=i && k>j))){
+                table[i] = table[j];
+                table[i+1] = table[j+1];
+                i = j;
+            }
+        }
+        table[i] = 0;
+        table[i+1] = 0;
+        size--;
+        return true;
+    }
+
+
+  //**************************************************************************
+  //** resize
+  //**************************************************************************
+    private void resize(int capacity){
+        long[] arr = table;
+        table = new long[capacity];
+        size = 0;
+        for (int i=0; i<arr.length; i+=2){
+            if (arr[i]!=0) addHash(arr[i], arr[i+1]);
+        }
+    }
+
+
+  //**************************************************************************
+  //** append
+  //**************************************************************************
+    private void append(byte op, long h1, long h2) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.put(op);
+        record.putLong(h1);
+        record.putLong(h2);
+        record.flip();
+        long position = HEADER_SIZE + numRecords*RECORD_SIZE;
+        while (record.hasRemaining()){
+            position += log.write(record, position);
+        }
+        numRecords++;
+    }
+
+
+  //**************************************************************************
+  //** compact
+  //**************************************************************************
+  /** Used to rewrite the log so that it only contains the current entries.
+   *  The new log is written to a temp file and moved over the original log
+   *  so that a crash during compaction does not lose the index.
+   */
+    private void compact() throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)){
+
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE*4096);
+            buffer.putLong(MAGIC);
+            for (int i=0; i<table.length; i+=2){
+                if (table[i]==0) continue;
+                if (buffer.remaining()<RECORD_SIZE) write(buffer, out);
+                buffer.put(ADD);
+                buffer.putLong(table[i]);
+                buffer.putLong(table[i+1]);
+            }
+            write(buffer, out);
+            out.force(true);
+        }
+
+        log.close();
+        try{
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch(AtomicMoveNotSupportedException e){
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        log = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        numRecords = size;
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+  /** Used to write the contents of a buffer to the end of a channel and
+   *  clear the buffer
+   */
+    private static void write(ByteBuffer buffer, FileChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()){
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+
+  //**************************************************************************
+  //** readHeader
+  //**************************************************************************
+    private long readHeader() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        while (buffer.hasRemaining()){
+            if (log.read(buffer, buffer.position())<0) return 0;
+        }
+        return buffer.getLong(0);
+    }
+
+
+  //**************************************************************************
+  //** slot
+  //**************************************************************************
+  /** Returns the preferred position of a fingerprint in the hash table
+   */
+    private static int slot(long h1, int mask){
+        return ((int) (h1 ^ (h1 >>> 32)) << 1) & mask;
+    }
+
+
+  //**************************************************************************
+  //** hash1
+  //**************************************************************************
+  /** Returns the first half of the fingerprint for a given key. Zero is
+   *  reserved for empty slots in the hash table.
+   */
+    private static long hash1(String key){
+        long h = 0xcbf29ce484222325L; //FNV-1a
+        for (int i=0; i<key.length(); i++){
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h = mix(h);
+        return h==0 ? 1 : h;
+    }
+
+
+  //**************************************************************************
+  //** hash2
+  //**************************************************************************
+  /** Returns the second half of the fingerprint for a given key. Uses a
+   *  different seed and multiplier than hash1() so the two are independent.
+   */
+    private static long hash2(String key){
+        long h = 0x2545f4914f6cdd1dL;
+        for (int i=0; i<key.length(); i++){
+            h = (h + key.charAt(i)) * 0x9e3779b97f4a7c15L;
+            h ^= h >>> 29;
+        }
+        return mix(h ^ key.length());
+    }
+
+
+  //**************************************************************************
+  //** mix
+  //**************************************************************************
+  /** MurmurHash3 finalizer
+   */
+    private static long mix(long h){
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
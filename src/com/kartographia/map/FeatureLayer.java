@@ -0,0 +1,224 @@
+package com.kartographia.map;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.index.strtree.STRtree;
+import java.awt.Stroke;
+import java.util.*;
+
+//******************************************************************************
+//**  FeatureLayer
+//******************************************************************************
+/**
+ *   Used to render a collection of features (geometries and styles) onto map
+ *   tiles. Features are stored in a spatial index (STRtree) so that only the
+ *   features that intersect a tile are rendered. Example:
+ <pre>
+    FeatureLayer layer = new FeatureLayer();
+    for (Geometry geom : roads) layer.add(geom, style);
+
+    MapTile mapTile = new MapTile(x, y, z, 256);
+    layer.render(mapTile);
+ </pre>
+ *   Features are rendered in the order they were added. Geometries are
+ *   expected to be in lat/lon (EPSG:4326). The render() method can be
+ *   called from multiple threads. The spatial index is built once, by the
+ *   first render after a feature is added, and is shared by all render
+ *   threads without locking.
+ *
+ ******************************************************************************/
+
+public class FeatureLayer {
+
+    private ArrayList<Feature> features = new ArrayList<>();
+    private double maxSize = 0; //largest point size or border width, in pixels
+    private int version = 0; //incremented when a feature is added
+    private volatile Index index;
+    private final Object buildLock = new Object();
+
+    private static final double DEFAULT_POINT_SIZE = 4;
+
+
+  //**************************************************************************
+  //** add
+  //**************************************************************************
+  /** Used to add a feature to the layer. The spatial index is rebuilt the
+   *  next time the layer is rendered.
+   *  @param geom Point, line, polygon, or collection in lat/lon (EPSG:4326)
+   *  @param style Used to render the feature. Lines are rendered using the
+   *  style color and border width. Polygons are filled with the style color
+   *  and outlined with the border color and border width. Points are
+   *  rendered using the style color and point size.
+   */
+    public synchronized void add(Geometry geom, MapStyle style){
+        if (geom==null || geom.isEmpty() || style==null) return;
+        features.add(new Feature(features.size(), geom, style));
+
+        Float borderWidth = style.getBorderWidth();
+        if (borderWidth!=null) maxSize = Math.max(maxSize, borderWidth);
+        maxSize = Math.max(maxSize, getPointSize(style));
+
+        version++;
+        index = null;
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of features in the layer
+   */
+    public synchronized int size(){
+        return features.size();
+    }
+
+
+  //**************************************************************************
+  //** render
+  //**************************************************************************
+  /** Used to render all the features that intersect a given tile
+   */
+    public void render(MapTile mapTile){
+
+
+      //Get tile extent, padded by the largest point size or line width so
+      //that features just outside the tile are included
+        Index index = getIndex();
+        double maxSize = index.maxSize;
+        double west = mapTile.getWest();
+        double east = mapTile.getEast();
+        double south = mapTile.getSouth();
+        double north = mapTile.getNorth();
+        double dx = ((east-west)/mapTile.getWidth())*maxSize;
+        double dy = ((north-south)/mapTile.getHeight())*maxSize;
+        Envelope extent = new Envelope(west-dx, east+dx, south-dy, north+dy);
+
+
+      //Find features and sort them in the order they were added
+        List hits = index.tree.query(extent);
+        Feature[] arr = new Feature[hits.size()];
+        for (int i=0; i<arr.length; i++){
+            arr[i] = (Feature) hits.get(i);
+        }
+        Arrays.sort(arr, (a, b) -> Integer.compare(a.id, b.id));
+
+
+      //Render features
+        for (Feature feature : arr){
+            render(feature.geom, feature.style, mapTile);
+        }
+    }
+
+
+  //**************************************************************************
+  //** render
+  //**************************************************************************
+    private void render(Geometry geom, MapStyle style, MapTile mapTile){
+        if (geom instanceof Point){
+            Point point = (Point) geom;
+            if (style.getColor()==null) return;
+            mapTile.addPoint(point.getY(), point.getX(), style.getColor(), getPointSize(style));
+        }
+        else if (geom instanceof LineString){
+            mapTile.addLine((LineString) geom, style.getColor(), getStroke(style));
+        }
+        else if (geom instanceof Polygon){
+            mapTile.addPolygon((Polygon) geom, style.getBorderColor(), getStroke(style), style.getColor());
+        }
+        else if (geom instanceof GeometryCollection){
+            for (int i=0; i<geom.getNumGeometries(); i++){
+                render(geom.getGeometryN(i), style, mapTile);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** getIndex
+  //**************************************************************************
+  /** Returns the spatial index. Builds the index as needed. Only one thread
+   *  builds the index at a time. The features are copied so that features
+   *  can be added while the index is being built. The index is not saved if
+   *  features were added during the build.
+   */
+    private Index getIndex(){
+        Index index = this.index;
+        if (index!=null) return index;
+
+        synchronized(buildLock){
+            index = this.index;
+            if (index!=null) return index;
+
+            Feature[] features;
+            double maxSize;
+            int version;
+            synchronized(this){
+                features = this.features.toArray(new Feature[this.features.size()]);
+                maxSize = this.maxSize;
+                version = this.version;
+            }
+
+            STRtree tree = new STRtree();
+            for (Feature feature : features){
+                tree.insert(feature.geom.getEnvelopeInternal(), feature);
+            }
+            tree.build();
+            index = new Index(tree, maxSize);
+
+            synchronized(this){
+                if (this.version==version) this.index = index;
+            }
+            return index;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getStroke
+  //**************************************************************************
+    private static Stroke getStroke(MapStyle style){
+        Float borderWidth = style.getBorderWidth();
+        if (borderWidth==null) return null;
+        return GlyphCache.getStroke(borderWidth);
+    }
+
+
+  //**************************************************************************
+  //** getPointSize
+  //**************************************************************************
+    private static double getPointSize(MapStyle style){
+        Double pointSize = style.getPointSize();
+        return pointSize==null ? DEFAULT_POINT_SIZE : pointSize;
+    }
+
+
+  //**************************************************************************
+  //** Index
+  //**************************************************************************
+  /** Immutable snapshot of the spatial index and the max point size or
+   *  border width of the features in the index
+   */
+    private static class Index {
+        private final STRtree tree;
+        private final double maxSize;
+
+        public Index(STRtree tree, double maxSize){
+            this.tree = tree;
+            this.maxSize = maxSize;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Feature
+  //**************************************************************************
+    private static class Feature {
+        private int id;
+        private Geometry geom;
+        private MapStyle style;
+
+        public Feature(int id, Geometry geom, MapStyle style){
+            this.id = id;
+            this.geom = geom;
+            this.style = style;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.kartographia.map;
+import java.awt.BasicStroke;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Shape;
+import java.awt.font.FontRenderContext;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+//******************************************************************************
+//**  GlyphCache
+//******************************************************************************
+/**
+ *   Process-wide cache of text outlines, string widths, and strokes used to
+ *   render labels. Outlines are created with the baseline at the origin so
+ *   they can be reused across tiles by translating the graphics context. The
+ *   cache is bounded and evicts entries that have not been used recently.
+ *   Lookups do not take any locks so the cache can be used by many render
+ *   threads at once. Shapes returned by this class are shared and should not
+ *   be modified.
+ *
+ ******************************************************************************/
+
+public class GlyphCache {
+
+    private static final BoundedCache<Shape> shapes = new BoundedCache<>();
+    private static final BoundedCache<Integer> widths = new BoundedCache<>();
+    private static final ConcurrentHashMap<Float, BasicStroke> strokes = new ConcurrentHashMap<>();
+    private static volatile int maxSize = 10000;
+
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+
+    private GlyphCache(){}
+
+
+  //**************************************************************************
+  //** getOutline
+  //**************************************************************************
+  /** Returns the outline of a given string, with the baseline at the origin
+   */
+    public static Shape getOutline(Font font, FontRenderContext frc, String text){
+        Key key = new Key(font, frc, text, -1);
+        Shape shape = shapes.get(key);
+        count(shape!=null);
+        if (shape==null){
+            shape = font.createGlyphVector(frc, text).getOutline();
+            shapes.put(key, shape);
+        }
+        return shape;
+    }
+
+
+  //**************************************************************************
+  //** getBorder
+  //**************************************************************************
+  /** Returns the outline of a given string, stroked with a given width. The
+   *  shape can be filled to render a border (halo) around the text.
+   */
+    public static Shape getBorder(Font font, FontRenderContext frc, String text, float borderWidth){
+        Key key = new Key(font, frc, text, borderWidth);
+        Shape shape = shapes.get(key);
+        count(shape!=null);
+        if (shape==null){
+
+          //Get outline without updating the hit/miss counters so that each
+          //call to this method is counted once
+            Key outlineKey = new Key(font, frc, text, -1);
+            Shape outline = shapes.get(outlineKey);
+            if (outline==null){
+                outline = font.createGlyphVector(frc, text).getOutline();
+                shapes.put(outlineKey, outline);
+            }
+
+            shape = getStroke(borderWidth).createStrokedShape(outline);
+            shapes.put(key, shape);
+        }
+        return shape;
+    }
+
+
+  //**************************************************************************
+  //** getStringWidth
+  //**************************************************************************
+  /** Returns the width of a given string, in pixels, as reported by
+   *  FontMetrics.stringWidth(). Widths are cached by font, render context,
+   *  and text so that labels and words are measured once and reused across
+   *  tiles.
+   */
+    public static int getStringWidth(FontMetrics fm, String text){
+        Key key = new Key(fm.getFont(), fm.getFontRenderContext(), text, -1);
+        Integer width = widths.get(key);
+        if (width==null){
+            width = fm.stringWidth(text);
+            widths.put(key, width);
+        }
+        return width;
+    }
+
+
+  //**************************************************************************
+  //** getStroke
+  //**************************************************************************
+  /** Returns a shared BasicStroke for a given line width
+   */
+    public static BasicStroke getStroke(float width){
+        BasicStroke stroke = strokes.get(width);
+        if (stroke==null){
+            if (strokes.size()>1000) strokes.clear();
+            stroke = strokes.computeIfAbsent(width, w -> new BasicStroke(w));
+        }
+        return stroke;
+    }
+
+
+  //**************************************************************************
+  //** setMaxSize
+  //**************************************************************************
+  /** Used to set the maximum number of shapes and the maximum number of
+   *  string widths to keep in the cache (default is 10,000)
+   */
+    public static void setMaxSize(int maxSize){
+        if (maxSize<0) return;
+        GlyphCache.maxSize = maxSize;
+        shapes.trim();
+        widths.trim();
+    }
+
+
+  //**************************************************************************
+  //** getSize
+  //**************************************************************************
+  /** Returns the number of shapes in the cache
+   */
+    public static int getSize(){
+        return shapes.size();
+    }
+
+
+  //**************************************************************************
+  //** getHits
+  //**************************************************************************
+  /** Returns the number of times a shape was found in the cache
+   */
+    public static long getHits(){
+        return hits.get();
+    }
+
+
+  //**************************************************************************
+  //** getMisses
+  //**************************************************************************
+  /** Returns the number of times a shape had to be created
+   */
+    public static long getMisses(){
+        return misses.get();
+    }
+
+
+  //**************************************************************************
+  //** clear
+  //**************************************************************************
+  /** Used to remove all the shapes, widths, and strokes from the cache and
+   *  reset the hit/miss counters
+   */
+    public static void clear(){
+        shapes.clear();
+        widths.clear();
+        strokes.clear();
+        hits.set(0);
+        misses.set(0);
+    }
+
+
+  //**************************************************************************
+  //** count
+  //**************************************************************************
+    private static void count(boolean hit){
+        if (hit) hits.incrementAndGet();
+        else misses.incrementAndGet();
+    }
+
+
+  //**************************************************************************
+  //** BoundedCache
+  //**************************************************************************
+  /** Thread-safe cache with a maximum number of entries. Entries are evicted
+   *  using the CLOCK algorithm: entries that were used since the last pass
+   *  are given a second chance, others are removed. Lookups do not take any
+   *  locks. Only the eviction pass is synchronized.
+   */
+    private static class BoundedCache<V> {
+
+        private final ConcurrentHashMap<Key, CacheEntry<V>> map = new ConcurrentHashMap<>(1024);
+        private Iterator<Map.Entry<Key, CacheEntry<V>>> clock; //guarded by this
+
+        public V get(Key key){
+            CacheEntry<V> entry = map.get(key);
+            if (entry==null) return null;
+            if (!entry.accessed) entry.accessed = true;
+            return entry.value;
+        }
+
+        public void put(Key key, V value){
+            map.put(key, new CacheEntry<>(value));
+            if (map.size()>maxSize) trim();
+        }
+
+        public int size(){
+            return map.size();
+        }
+
+        public void clear(){
+            map.clear();
+        }
+
+        public synchronized void trim(){
+            long limit = map.size()*2L+1; //at most 2 passes
+            for (long i=0; i<limit && map.size()>maxSize; i++){
+                if (clock==null || !clock.hasNext()){
+                    clock = map.entrySet().iterator();
+                    if (!clock.hasNext()) break;
+                }
+                Map.Entry<Key, CacheEntry<V>> e = clock.next();
+                CacheEntry<V> entry = e.getValue();
+                if (entry.accessed) entry.accessed = false;
+                else map.remove(e.getKey(), entry);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** CacheEntry
+  //**************************************************************************
+    private static class CacheEntry<V> {
+        private final V value;
+        private volatile boolean accessed = true;
+
+        public CacheEntry(V value){
+            this.value = value;
+        }
+    }
+
+
+  //**************************************************************************
+  //** Key
+  //**************************************************************************
+    private static class Key {
+        private final Font font;
+        private final FontRenderContext frc;
+        private final String text;
+        private final float borderWidth;
+        private final int hashCode;
+
+        public Key(Font font, FontRenderContext frc, String text, float borderWidth){
+            this.font = font;
+            this.frc = frc;
+            this.text = text;
+            this.borderWidth = borderWidth;
+            this.hashCode = Objects.hash(font, frc, text, borderWidth);
+        }
+
+        public int hashCode(){
+            return hashCode;
+        }
+
+        public boolean equals(Object obj){
+            if (!(obj instanceof Key)) return false;
+            Key key = (Key) obj;
+            return key.borderWidth==borderWidth && key.text.equals(text) &&
+                key.font.equals(font) && key.frc.equals(frc);
+        }
+    }
+}
@@ -1,5 +1,4 @@
 package com.kartographia.map;
-import java.awt.AlphaComposite;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.awt.Point;
@@ -8,7 +7,10 @@ import java.awt.RadialGradientPaint;
 import java.awt.geom.PathIterator;
 import java.awt.geom.QuadCurve2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 //******************************************************************************
 //**  HeatMap Class
@@ -21,7 +23,12 @@ import java.util.*;
 
 public class HeatMap {
 
-    private ArrayList<int[]> points; //array of x,y coordinates and a count
+    private int[] xs = new int[16]; //x coordinates
+    private int[] ys = new int[16]; //y coordinates
+    private int[] counts = new int[16]; //number of occurances of each x,y
+    private int numPoints = 0;
+
+    private static final float MIN_TRANSPARENCY = 1e-6f; //less than 1/255
     private int maxOccurance = 1;
     private float intensity = 1f;
     private int[] colors;
@@ -37,7 +44,6 @@ public class HeatMap {
     public HeatMap(int width, int height) {
         this.width = width;
         this.height = height;
-        points = new ArrayList<>();
         setColors(Color.black, Color.cyan, Color.green, Color.yellow, Color.red);
     }
 
@@ -50,9 +56,6 @@ public class HeatMap {
         int minY = Integer.MAX_VALUE;
         int maxX = Integer.MIN_VALUE;
         int maxY = Integer.MIN_VALUE;
-
-
-        HashMap<Integer, int[]> counts = new HashMap<>();
         for (Point point : points){
             int x = point.x;
             int y = point.y;
@@ -61,25 +64,18 @@ public class HeatMap {
             maxX = Math.max(x, maxX);
             minY = Math.min(y, minY);
             maxY = Math.max(y, maxY);
-
-            int hash = getkey(point);
-            int[] pt = counts.get(hash);
-            if (pt==null){
-                pt = new int[]{point.x, point.y, 1};
-                counts.put(hash, pt);
-            }
-            else {
-                pt[2] = pt[2]+1;
-            }
-            if (pt[2]>maxOccurance) maxOccurance = pt[2];
         }
 
         width = (int)Math.round(Math.abs(maxX-minX));
         height = (int)Math.round(Math.abs(maxY-minY));
         this.radius = radius;
-        this.points = new ArrayList<>();
-        Iterator<Integer> it = counts.keySet().iterator();
-        while (it.hasNext()) this.points.add(counts.get(it.next()));
+
+
+        PointCounter counter = new PointCounter(minX, minY, maxX, maxY, points.size());
+        for (Point point : points){
+            counter.add(point.x, point.y);
+        }
+        addPoints(counter);
     }
 
 
@@ -235,47 +231,107 @@ public class HeatMap {
   //** addPoints
   //**************************************************************************
     public void addPoints(final List<Point> points) {
-        Map<Integer, List<Point>> map = new HashMap<>();
-
-
-        final int pointSize = points.size();
-        for (int i = 0; i < pointSize; i++) {
-            final Point point = points.get(i);
-            // add point to correct list.
-            final int hash = getkey(point);
-            if (map.containsKey(hash)) {
-                final List<Point> thisList = map.get(hash);
-                thisList.add(point);
-            } else {
-                final List<Point> newList = new LinkedList<>();
-                newList.add(point);
-                map.put(hash, newList);
-            }
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (Point point : points){
+            minX = Math.min(point.x, minX);
+            maxX = Math.max(point.x, maxX);
+            minY = Math.min(point.y, minY);
+            maxY = Math.max(point.y, maxY);
         }
 
-        Iterator<List<Point>> iterator = map.values().iterator();
-        while (iterator.hasNext()) {
-            final List<Point> currentPoints = iterator.next();
-            Point point = currentPoints.get(0);
-            int count = currentPoints.size();
-            if (count>maxOccurance) maxOccurance = count;
-            this.points.add(new int[]{point.x, point.y, count});
+        PointCounter counter = new PointCounter(minX, minY, maxX, maxY, points.size());
+        for (Point point : points){
+            counter.add(point.x, point.y);
         }
+        addPoints(counter);
     }
 
 
   //**************************************************************************
   //** addPoints
   //**************************************************************************
+  /** Used to add a large number of points to the heatmap. Duplicate points
+   *  are counted using primitive arrays so no objects are created for
+   *  individual points.
+   *  @param xs x coordinates
+   *  @param ys y coordinates
+   */
+    public void addPoints(int[] xs, int[] ys){
+        if (xs.length!=ys.length) throw new IllegalArgumentException("Array lengths don't match");
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        for (int i=0; i<xs.length; i++){
+            minX = Math.min(xs[i], minX);
+            maxX = Math.max(xs[i], maxX);
+            minY = Math.min(ys[i], minY);
+            maxY = Math.max(ys[i], maxY);
+        }
+
+        PointCounter counter = new PointCounter(minX, minY, maxX, maxY, xs.length);
+        for (int i=0; i<xs.length; i++){
+            counter.add(xs[i], ys[i]);
+        }
+        addPoints(counter);
+    }
+
+
+  //**************************************************************************
+  //** addPoints
+  //**************************************************************************
+  /** Used to add points to the heatmap
+   *  @param points An array of x,y coordinates and a count
+   */
     public void addPoints(ArrayList<int[]> points){
         for (int[] point : points){
-            int count = point[2];
-            if (count>maxOccurance) maxOccurance = count;
-            this.points.add(point);
+            addPoint(point[0], point[1], point[2]);
+        }
+    }
+
+
+  //**************************************************************************
+  //** addPoints
+  //**************************************************************************
+  /** Used to add points from a PointCounter
+   */
+    private void addPoints(PointCounter counter){
+        ensureCapacity(numPoints+counter.size());
+        for (int i=0; i<counter.capacity(); i++){
+            int count = counter.getCount(i);
+            if (count>0) addPoint(counter.getX(i), counter.getY(i), count);
         }
     }
 
 
+  //**************************************************************************
+  //** addPoint
+  //**************************************************************************
+    private void addPoint(int x, int y, int count){
+        ensureCapacity(numPoints+1);
+        xs[numPoints] = x;
+        ys[numPoints] = y;
+        counts[numPoints] = count;
+        numPoints++;
+        if (count>maxOccurance) maxOccurance = count;
+    }
+
+
+  //**************************************************************************
+  //** ensureCapacity
+  //**************************************************************************
+    private void ensureCapacity(int capacity){
+        if (capacity<=xs.length) return;
+        int size = Math.max(capacity, xs.length*2);
+        xs = Arrays.copyOf(xs, size);
+        ys = Arrays.copyOf(ys, size);
+        counts = Arrays.copyOf(counts, size);
+    }
+
+
   //**************************************************************************
   //** setMaxOccurance
   //**************************************************************************
@@ -292,139 +348,194 @@ public class HeatMap {
   //**************************************************************************
   //** getBufferedImage
   //**************************************************************************
-  /** Used to generate a heatmap and return an image
+  /** Used to generate a heatmap and return an image. Points are rendered
+   *  by multiplying a precomputed circle (kernel) into a buffer that tracks
+   *  the transparency of each pixel. This is equivalent to drawing the
+   *  circles with AlphaComposite.SRC_OVER but avoids the overhead of the
+   *  Java2D compositing pipeline for each point.
    */
     public BufferedImage getBufferedImage() {
 
-      //Create white image
-        BufferedImage heatMap = new BufferedImage(width, height, 6);
-        Graphics2D g2 = heatMap.createGraphics();
-        if (this.colors!=null){
-            g2.setColor(Color.white);
-            g2.fillRect(0, 0, heatMap.getWidth(), heatMap.getHeight());
-        }
+      //Render circles
+        float[] buffer = getBuffer();
 
 
-      //Create circle image
-        int w = radius*2;
-        int h = w;
+      //Create image. If colors are defined, map the transparency of each
+      //pixel to a color. Otherwise, render black circles on a transparent
+      //background. Large images are processed in parallel using row bands.
+        BufferedImage heatMap = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        int[] pixels = ((DataBufferInt) heatMap.getRaster().getDataBuffer()).getData();
+        int[] palette = this.colors==null || this.colors.length==0 ? null : getPalette();
+        RasterTask task = new RasterTask(buffer, pixels, palette, width, 0, height);
+        if ((long) width*height>RasterTask.THRESHOLD){
+            ForkJoinPool.commonPool().invoke(task);
+        }
+        else{
+            task.compute();
+        }
 
-        Point2D center = new Point2D.Float(radius, radius);
+        return heatMap;
+    }
 
-        float dist[] = { 0.0f, 0.1f, 1.0f };
-        int finalOpacity = (int) Math.round(255-(255*blur));
-        Color colors[] = {
-            new Color(0,0,0,255),
-            new Color(0,0,0,255),
-            new Color(0,0,0,finalOpacity)
-        };
 
-        RadialGradientPaint p = new RadialGradientPaint(center, radius, dist, colors);
+  //**************************************************************************
+  //** getBuffer
+  //**************************************************************************
+  /** Returns the transparency of each pixel in the heatmap (1=clear, 0=opaque)
+   */
+    private float[] getBuffer(){
+
+      //Create buffer used to store the transparency of each pixel (1=clear)
+        float[] buffer = new float[width*height];
+        Arrays.fill(buffer, 1f);
 
-        BufferedImage circle = new BufferedImage(w, h, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g = circle.createGraphics();
-        g.setPaint(p);
-        g.fillRect(0, 0, w, h);
-        g.dispose();
 
+      //Create circle
+        int w = radius*2;
+        float[] kernel = getKernel();
 
 
       //Draw circles
-        for (int[] point : points){
-            int x = point[0];
-            int y = point[1];
-            int count = point[2];
+        for (int i=0; i<numPoints; i++){
+            int x = xs[i] - radius;
+            int y = ys[i] - radius;
+            int count = counts[i];
 
             float opacity = count / (float) maxOccurance;
             opacity = opacity * intensity;
             if (opacity > 1) opacity = 1;
+            if (!(opacity > 0)) continue;
 
 
-            g2.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, opacity));
-            g2.drawImage(circle, (x - radius), (y - radius), null);
-        }
-        g2.dispose();
-
-
-      //Apply colors
-        if (this.colors!=null){
-
-          //Negate the image
-            heatMap = negateImage(heatMap);
+          //Clip circle to the image
+            int x0 = Math.max(x, 0);
+            int y0 = Math.max(y, 0);
+            int x1 = Math.min(x+w, width);
+            int y1 = Math.min(y+w, height);
 
-
-          //Remap black/white with colors
-            remap(heatMap);
+            for (int row=y0; row<y1; row++){
+                int k = (row-y)*w + (x0-x);
+                int idx = row*width + x0;
+                for (int col=x0; col<x1; col++){
+                    float t = buffer[idx] * (1f - kernel[k++]*opacity);
+                    buffer[idx++] = t<MIN_TRANSPARENCY ? 0f : t; //avoid denormals
+                }
+            }
         }
-
-        return heatMap;
+        return buffer;
     }
 
 
   //**************************************************************************
-  //** remap
+  //** getKernel
   //**************************************************************************
-  /** Remaps black and white picture with colors. The whiter a pixel is, the
-   *  more it will get a color from the bottom of it. Black will stay black.
-   *  @param heatMap black and white heat map
+  /** Returns the opacity (0-1) of each pixel in a circle used to render
+   *  individual points. The circle is rendered once using a radial gradient
+   *  and the blur.
    */
-    private void remap(BufferedImage heatMap) {
-
-        final int width = heatMap.getWidth();
-        final int height = heatMap.getHeight();
-        final int numColors = colors.length-1;
-        for (int i = 0; i < width; i++) {
-            for (int j = 0; j < height; j++) {
+    private float[] getKernel(){
+        int w = radius*2;
+        if (w<=0) return new float[0];
 
-                // get heatMapBW color values:
-                final int rGB = heatMap.getRGB(i, j);
+        Point2D center = new Point2D.Float(radius, radius);
 
-                // calculate multiplier to be applied to height of gradiant.
-                float multiplier = rGB & 0xff; // blue
-                multiplier *= ((rGB >>> 8)) & 0xff; // green
-                multiplier *= (rGB >>> 16) & 0xff; // red
-                multiplier /= 16581375; // 255f * 255f * 255f
+        float dist[] = { 0.0f, 0.1f, 1.0f };
+        int finalOpacity = (int) Math.round(255-(255*blur));
+        Color colors[] = {
+            new Color(0,0,0,255),
+            new Color(0,0,0,255),
+            new Color(0,0,0,finalOpacity)
+        };
 
-                // apply multiplier
-                final int idx = (int) Math.round(multiplier * numColors);
+        RadialGradientPaint p = new RadialGradientPaint(center, radius, dist, colors);
 
+        BufferedImage circle = new BufferedImage(w, w, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = circle.createGraphics();
+        g.setPaint(p);
+        g.fillRect(0, 0, w, w);
+        g.dispose();
 
-                // calculate new value based on whiteness of heatMap
-                // (the whiter, the more a color from the top of colorGradiant
-                // will be chosen.
-                int rgb = colors[idx];
-                heatMap.setRGB(i, j, rgb);
-            }
+        int[] pixels = ((DataBufferInt) circle.getRaster().getDataBuffer()).getData();
+        float[] kernel = new float[pixels.length];
+        for (int i=0; i<pixels.length; i++){
+            kernel[i] = (pixels[i] >>> 24) / 255f;
         }
+        return kernel;
     }
 
 
   //**************************************************************************
-  //** negateImage
+  //** getPalette
   //**************************************************************************
-  /** returns a negated version of an image
+  /** Returns a lookup table used to map grayscale values (0=black, 255=white)
+   *  to colors. Black is mapped to the hottest color and white is mapped to
+   *  the coldest color. The index into the color array is computed from the
+   *  cube of the negated grayscale value so that the hotter colors are
+   *  reserved for the most intense areas.
    */
-    private BufferedImage negateImage(final BufferedImage img) {
-        for (int x = 0; x < img.getWidth(); x++) {
-            for (int y = 0; y < img.getHeight(); y++) {
-                int rgb = img.getRGB(x, y);
-                int r = Math.abs(((rgb >>> 16) & 0xff) - 255); // red inverted
-                int g = Math.abs(((rgb >>> 8) & 0xff) - 255); // green inverted
-                int b = Math.abs((rgb & 0xff) - 255); // blue inverted
-                img.setRGB(x, y, (r << 16) | (g << 8) | b);
-            }
+    private int[] getPalette(){
+        int numColors = colors.length-1;
+        int[] palette = new int[256];
+        for (int v=0; v<256; v++){
+            float multiplier = 255-v;
+            multiplier *= 255-v;
+            multiplier *= 255-v;
+            multiplier /= 16581375; // 255f * 255f * 255f
+            palette[v] = colors[(int) Math.round(multiplier * numColors)];
         }
-        return img;
+        return palette;
     }
 
 
   //**************************************************************************
-  //** getkey
+  //** RasterTask
   //**************************************************************************
-  /** Returns a hash for a given point
+  /** Used to convert a transparency buffer into pixels for a range of rows
    */
-    private int getkey(final Point p) {
-        return ((p.x << 19) | (p.y << 7));
+    private static class RasterTask extends RecursiveAction {
+
+        private static final int THRESHOLD = 65536; //pixels
+        private final float[] buffer;
+        private final int[] pixels;
+        private final int[] palette;
+        private final int width;
+        private final int startRow;
+        private final int endRow;
+
+        public RasterTask(float[] buffer, int[] pixels, int[] palette, int width, int startRow, int endRow){
+            this.buffer = buffer;
+            this.pixels = pixels;
+            this.palette = palette;
+            this.width = width;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        protected void compute(){
+            int numRows = endRow-startRow;
+            if ((long) numRows*width<=THRESHOLD || numRows<2){
+                int start = startRow*width;
+                int end = endRow*width;
+                if (palette==null){
+                    for (int i=start; i<end; i++){
+                        int a = Math.round((1f-buffer[i])*255f);
+                        pixels[i] = a << 24;
+                    }
+                }
+                else{
+                    for (int i=start; i<end; i++){
+                        pixels[i] = palette[Math.round(buffer[i]*255f)];
+                    }
+                }
+            }
+            else{
+                int mid = (startRow+endRow) >>> 1;
+                invokeAll(
+                    new RasterTask(buffer, pixels, palette, width, startRow, mid),
+                    new RasterTask(buffer, pixels, palette, width, mid, endRow)
+                );
+            }
+        }
     }
 
 
@@ -461,6 +572,122 @@ public class HeatMap {
     }
 
 
+  //**************************************************************************
+  //** PointCounter
+  //**************************************************************************
+  /** Used to count the number of occurrences of x,y coordinates. When the
+   *  extent of the points is small relative to the number of points, counts
+   *  are stored in a dense grid (one int per pixel). Otherwise, points are
+   *  stored in an open-addressing hash table keyed by a 64-bit value (x in
+   *  the upper 32 bits and y in the lower 32 bits). In either case, distinct
+   *  points never share a slot so the counts are exact for any int
+   *  coordinates, including negative values. Counts saturate at
+   *  Integer.MAX_VALUE instead of overflowing.
+   */
+    private static class PointCounter {
+
+        private int minX;
+        private int minY;
+        private int gridWidth;
+        private long[] keys;
+        private int[] values; //zero is used to represent an empty slot
+        private int size = 0;
+
+        private static final int MAX_GRID_SIZE = 1 << 24;
+        private static final int INITIAL_TABLE_SIZE = 1 << 16;
+
+        public PointCounter(int minX, int minY, int maxX, int maxY, int expectedSize){
+            long w = (long) maxX - minX + 1;
+            long h = (long) maxY - minY + 1;
+            long cells = w*h;
+            if (w>0 && h>0 && cells<=MAX_GRID_SIZE && cells<=Math.max(4096, expectedSize*4L)){
+                this.minX = minX;
+                this.minY = minY;
+                gridWidth = (int) w;
+                values = new int[(int) cells];
+            }
+            else{
+
+              //Start small and let the table grow. The input may contain far
+              //fewer distinct points than expectedSize (e.g. duplicates).
+                int capacity = 16;
+                int initialSize = Math.min(expectedSize, INITIAL_TABLE_SIZE);
+                while (capacity<initialSize*2L) capacity <<= 1;
+                keys = new long[capacity];
+                values = new int[capacity];
+            }
+        }
+
+        public void add(int x, int y){
+            if (keys==null){
+                int i = (y-minY)*gridWidth + (x-minX);
+                int count = values[i];
+                if (count==0) size++;
+                if (count!=Integer.MAX_VALUE) values[i] = count+1;
+                return;
+            }
+
+            long key = (((long) x) << 32) | (y & 0xffffffffL);
+            int mask = keys.length-1;
+            int i = slot(key, mask);
+            while (values[i]!=0){
+                if (keys[i]==key){
+                    if (values[i]!=Integer.MAX_VALUE) values[i]++;
+                    return;
+                }
+                i = (i+1) & mask;
+            }
+            keys[i] = key;
+            values[i] = 1;
+            size++;
+            if (size*4L>keys.length*3L) resize();
+        }
+
+        public int size(){
+            return size;
+        }
+
+        public int capacity(){
+            return values.length;
+        }
+
+        public int getCount(int i){
+            return values[i];
+        }
+
+        public int getX(int i){
+            if (keys==null) return minX + i%gridWidth;
+            return (int) (keys[i] >> 32);
+        }
+
+        public int getY(int i){
+            if (keys==null) return minY + i/gridWidth;
+            return (int) keys[i];
+        }
+
+        private void resize(){
+            if (keys.length>=(1<<30)) throw new IllegalStateException("Too many points");
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = new long[oldKeys.length*2];
+            values = new int[oldValues.length*2];
+            int mask = keys.length-1;
+            for (int j=0; j<oldKeys.length; j++){
+                if (oldValues[j]==0) continue;
+                int i = slot(oldKeys[j], mask);
+                while (values[i]!=0) i = (i+1) & mask;
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+
+        private static int slot(long key, int mask){
+            key *= 0x9e3779b97f4a7c15L; //fibonacci hashing
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+    }
+
+
   //**************************************************************************
   //** getContours
   //**************************************************************************
@@ -498,45 +725,66 @@ public class HeatMap {
         int buffer = 2*offset;
         width += buffer;
         height += buffer;
-        ArrayList<int[]> org = points;
-        points = new ArrayList<>();
-        for (int[] point : org){
-            points.add(new int[]{point[0]+offset, point[1]+offset, point[2]});
+        int[] orgX = xs;
+        int[] orgY = ys;
+        xs = new int[numPoints];
+        ys = new int[numPoints];
+        for (int i=0; i<numPoints; i++){
+            xs[i] = orgX[i]+offset;
+            ys[i] = orgY[i]+offset;
         }
         int[] colors = this.colors;
         this.colors = null;
         setColors("#fff", "#ff0000");
-        BufferedImage bi = getBufferedImage();
 
 
+      //Render heatmap into an array of alpha values
+        int[] palette = getPalette();
+        for (int i=0; i<palette.length; i++){
+            palette[i] = palette[i] >>> 24;
+        }
+        int[] alpha = new int[width*height];
+        RasterTask task = new RasterTask(getBuffer(), alpha, palette, width, 0, height);
+        if ((long) width*height>RasterTask.THRESHOLD){
+            ForkJoinPool.commonPool().invoke(task);
+        }
+        else{
+            task.compute();
+        }
+
 
 
       //Apply guassian blur
-        javaxt.io.Image img = new javaxt.io.Image(bi);
-        img.blur(blur);
-        bi = img.getBufferedImage();
-        //img.saveAs("/temp/gypsy/contours.png");
+        blur(alpha, width, height, blur);
 
 
-      //Generate list of alpha values for each point
-        ArrayList<Integer> alphas = new ArrayList<>();
+      //Generate list of alpha values for each point. Skip points that fall
+      //outside the raster.
+        int[] alphas = new int[numPoints];
+        int numAlphas = 0;
         int minA = Integer.MAX_VALUE;
         int maxA = Integer.MIN_VALUE;
-        for (int[] point : points) {
-            int pixel = bi.getRGB(point[0], point[1]);
-            int alpha = (pixel >> 24) & 0xff;
-
-            alphas.add(alpha);
-            minA = Math.min(alpha, minA);
-            maxA = Math.max(alpha, maxA);
+        for (int i=0; i<numPoints; i++) {
+            int x = xs[i];
+            int y = ys[i];
+            if (x<0 || y<0 || x>=width || y>=height) continue;
+            int a = alpha[y*width + x];
+
+            alphas[numAlphas++] = a;
+            minA = Math.min(a, minA);
+            maxA = Math.max(a, maxA);
         }
-        Collections.sort(alphas);
+        if (numAlphas<alphas.length) alphas = Arrays.copyOf(alphas, numAlphas);
+        Arrays.sort(alphas);
 
 
 
       //Compute breakpoints for the contours using the alpha values
         int[] steps;
-        if (percentiles.length==0){
+        if (alphas.length==0){
+            steps = new int[0]; //no points in the raster
+        }
+        else if (percentiles.length==0){
             steps = new int[]{
                 getAlpha(80, alphas), //get top 20% of alpha values
                 0,
@@ -563,8 +811,7 @@ public class HeatMap {
       //Generate contours for each step
         Contour[] contours = new Contour[steps.length];
         for (int i=0; i<steps.length; i++){
-            int alpha = steps[i];
-            ArrayList<ArrayList<double[]>> polygons = getContours(bi, alpha);
+            ArrayList<ArrayList<double[]>> polygons = getContours(alpha, width, height, steps[i]);
             for (ArrayList<double[]> coordinates : polygons){
                 for (int j=0; j<coordinates.size(); j++){
                     double[] coord = coordinates.get(j);
@@ -580,7 +827,8 @@ public class HeatMap {
       //Reset size, coordinates, colors, etc
         width = width-offset;
         height = height-offset;
-        points = org;
+        xs = orgX;
+        ys = orgY;
         setColors(colors);
 
 
@@ -588,6 +836,117 @@ public class HeatMap {
     }
 
 
+  //**************************************************************************
+  //** blur
+  //**************************************************************************
+  /** Used to apply a gaussian blur to an array of values (e.g. alpha). The
+   *  gaussian is approximated using 3 box blurs, each applied horizontally
+   *  and vertically. Each box blur uses a running sum so the cost is
+   *  proportional to the number of pixels regardless of the radius. Large
+   *  arrays are processed in parallel using row bands.
+   *  @param values Array of values, row by row. The array is updated in place.
+   *  @param radius Blur radius. The standard deviation of the gaussian is
+   *  a third of the radius.
+   */
+    private static void blur(int[] values, int width, int height, float radius){
+        if (radius<=0 || values.length==0) return;
+
+
+      //Compute box sizes for 3 passes (see "Fastest Gaussian Blur" by Ivan
+      //Kutskir). Each box has an odd width.
+        int n = 3;
+        double sigma = radius/3.0;
+        double wIdeal = Math.sqrt((12*sigma*sigma/n)+1);
+        int wl = (int) Math.floor(wIdeal);
+        if (wl%2==0) wl--;
+        int wu = wl+2;
+        double mIdeal = (12*sigma*sigma - n*wl*wl - 4*n*wl - 3*n)/(-4*wl - 4);
+        long m = Math.round(mIdeal);
+
+
+      //Apply box blurs. Each pass blurs the rows of the input and writes the
+      //output transposed so that two passes blur both directions.
+        int[] temp = new int[values.length];
+        for (int i=0; i<n; i++){
+            int r = ((i<m ? wl : wu)-1)/2;
+            if (r<1) continue;
+            new BlurTask(values, temp, width, height, r, 0, height).run();
+            new BlurTask(temp, values, height, width, r, 0, width).run();
+        }
+    }
+
+
+  //**************************************************************************
+  //** BlurTask
+  //**************************************************************************
+  /** Used to apply a box blur to a range of rows. The output is transposed
+   *  (rows become columns).
+   */
+    private static class BlurTask extends RecursiveAction {
+
+        private static final int THRESHOLD = 65536; //pixels
+        private final int[] src;
+        private final int[] dst;
+        private final int width;
+        private final int height;
+        private final int radius;
+        private final int startRow;
+        private final int endRow;
+
+        public BlurTask(int[] src, int[] dst, int width, int height, int radius, int startRow, int endRow){
+            this.src = src;
+            this.dst = dst;
+            this.width = width;
+            this.height = height;
+            this.radius = radius;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        public void run(){
+            if ((long) width*height>THRESHOLD) ForkJoinPool.commonPool().invoke(this);
+            else compute();
+        }
+
+        protected void compute(){
+            int numRows = endRow-startRow;
+            if ((long) numRows*width<=THRESHOLD || numRows<2){
+                int size = radius*2+1;
+                int last = width-1;
+                for (int y=startRow; y<endRow; y++){
+                    int offset = y*width;
+
+
+                  //Compute sum for the first pixel. Pixels beyond the edge
+                  //of the row have the same value as the edge pixel.
+                    int sum = (radius+1)*src[offset];
+                    for (int i=1; i<=radius; i++){
+                        sum += src[offset + Math.min(i, last)];
+                    }
+
+
+                  //Slide the box across the row
+                    int idx = y;
+                    for (int x=0; x<width; x++){
+                        dst[idx] = (sum + radius)/size;
+                        idx += height;
+
+                        sum += src[offset + Math.min(x+radius+1, last)];
+                        sum -= src[offset + Math.max(x-radius, 0)];
+                    }
+                }
+            }
+            else{
+                int mid = (startRow+endRow) >>> 1;
+                invokeAll(
+                    new BlurTask(src, dst, width, height, radius, startRow, mid),
+                    new BlurTask(src, dst, width, height, radius, mid, endRow)
+                );
+            }
+        }
+    }
+
+
   //**************************************************************************
   //** Contour Class
   //**************************************************************************
@@ -605,13 +964,14 @@ public class HeatMap {
   //**************************************************************************
   //** getContours
   //**************************************************************************
-    private ArrayList<ArrayList<double[]>> getContours(BufferedImage bi, int step){
+  /** Returns polygons for areas where the alpha values are greater than or
+   *  equal to a given step
+   *  @param alpha Array of alpha values, row by row
+   */
+    private ArrayList<ArrayList<double[]>> getContours(int[] alpha, int width, int height, int step){
         long s = System.currentTimeMillis();
         ArrayList<ArrayList<double[]>> polygons = new ArrayList<>();
 
-        int width = bi.getWidth();
-        int height = bi.getHeight();
-
 
       //Creating indexed color array which has a boundary filled with -1 in every direction
         int [][] arr = new int[height+2][width+2];
@@ -621,13 +981,10 @@ public class HeatMap {
 
 
         for (int y=0; y<height; y++){
+            int[] row = arr[y+1];
+            int offset = y*width;
             for (int x=0; x<width; x++){
-
-                int pixel = bi.getRGB(x, y);
-                int alpha = (pixel >> 24) & 0xff;
-
-                int ci= alpha>=step ? 1 : 0;
-                arr[y+1][x+1] = ci;
+                row[x+1] = alpha[offset+x]>=step ? 1 : 0;
             }
         }
 
@@ -1200,9 +1557,9 @@ public class HeatMap {
   //**************************************************************************
   //** getAlpha
   //**************************************************************************
-    private int getAlpha(double percentile, ArrayList<Integer> alphas) {
-        if (percentile==0) return alphas.get(0);
-        int index = (int) Math.ceil(percentile / 100.0 * alphas.size());
-        return alphas.get(index-1);
+    private int getAlpha(double percentile, int[] alphas) {
+        if (percentile==0) return alphas[0];
+        int index = (int) Math.ceil(percentile / 100.0 * alphas.length);
+        return alphas[index-1];
     }
 }
\ No newline at end of file
@@ -16,6 +16,7 @@ public class MapStyle {
     private Color color;
     private Color borderColor;
     private Float borderWidth;
+    private Double pointSize;
     private Font font;
     private String align = "center";
     private String valign = "middle";
@@ -27,6 +28,7 @@ public class MapStyle {
         style.color = color;
         style.borderColor = borderColor;
         style.borderWidth = borderWidth;
+        style.pointSize = pointSize;
         style.font = font;
         style.align = align;
         style.valign = valign;
@@ -59,6 +61,15 @@ public class MapStyle {
         return borderWidth;
     }
 
+    public void setPointSize(Double size){
+        if (size!=null && size<0) return;
+        pointSize = size;
+    }
+
+    public Double getPointSize(){
+        return pointSize;
+    }
+
     public void setFont(String fontName, int fontSize){
         font = new Font(fontName, Font.TRUETYPE_FONT, fontSize);
     }
@@ -1,5 +1,6 @@
 package com.kartographia.map;
 import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.impl.CoordinateArraySequence;
 import org.locationtech.jts.io.WKTReader;
 import java.awt.Color;
 import java.awt.Font;
@@ -10,8 +11,15 @@ import java.awt.Rectangle;
 import java.awt.Shape;
 import java.awt.Stroke;
 import java.awt.BasicStroke;
-import java.text.DecimalFormat;
+import java.awt.font.FontRenderContext;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferInt;
+import java.awt.image.WritableRaster;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.*;
 
 //******************************************************************************
@@ -20,6 +28,13 @@ import java.util.*;
 /**
  *   Used to generate images that are rendered on a map. Can be used render
  *   points, lines, polygons, etc.
+ *   <p/>
+ *   Concurrency: a MapTile instance is not thread-safe and should only be
+ *   used by one thread at a time. To render tiles in parallel, create a
+ *   separate MapTile for each tile (or use a MapTile.Pool). The static
+ *   methods in this class do not use any shared mutable state and can be
+ *   called from multiple threads without synchronization. Text outlines are
+ *   shared between tiles via the thread-safe GlyphCache.
  *
  ******************************************************************************/
 
@@ -32,7 +47,7 @@ public class MapTile {
 
     protected javaxt.io.Image img;
     protected Graphics2D g2d;
-    private ArrayList<Rectangle> textboxes = new ArrayList<>();
+    private LabelIndex textboxes;
 
     private String wkt;
     private double north;
@@ -41,15 +56,25 @@ public class MapTile {
     private double west;
     private Geometry geom;
     private int srid;
+    private int blockSize; //number of x,y,z tiles along each side, 0 if created from a bbox
+    private boolean simplify = false;
 
 
-    private static DecimalFormat df = new DecimalFormat("#.##");
-    static{ df.setMaximumFractionDigits(8); }
+  //Constants used to convert lat/lon directly to pixels (EPSG:3857)
+    private double ax, bx, ay, by;
+    private double[] yTable;
+    private double yTableMin, yTableScale;
+    private int numProjected = 0;
+    private static final int Y_TABLE_SIZE = 1024;
+    private static final int Y_TABLE_THRESHOLD = 4096;
+    private static final double Y_TABLE_MAX_ERROR = 1.0/64; //pixels
 
 
 
-    private static PrecisionModel precisionModel = new PrecisionModel();
-    private static GeometryFactory geometryFactory = new GeometryFactory(precisionModel, 4326);
+
+
+    private static final PrecisionModel precisionModel = new PrecisionModel();
+    private static final GeometryFactory geometryFactory = new GeometryFactory(precisionModel, 4326); //immutable
 
 
   //**************************************************************************
@@ -64,14 +89,33 @@ public class MapTile {
   //** Constructor
   //**************************************************************************
     public MapTile(int x, int y, int z, int size){
+        this(x, y, z, size, 1);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Used to create a "metatile" that covers an n x n block of tiles. The
+   *  image is (n*size) x (n*size) pixels. Features rendered on a metatile
+   *  can be sliced into individual tiles so that labels and line work are
+   *  consistent across tile boundaries.
+   *  @param x Column of the upper left tile in the block
+   *  @param y Row of the upper left tile in the block
+   *  @param size Width/height of an individual tile, in pixels
+   *  @param n Number of tiles along each side of the block
+   */
+    public MapTile(int x, int y, int z, int size, int n){
+        if (n<1) throw new IllegalArgumentException("Invalid block size");
         double north = tile2lat(y, z);
-        double south = tile2lat(y + 1, z);
+        double south = tile2lat(y + n, z);
         double west = tile2lon(x, z);
-        double east = tile2lon(x + 1, z);
+        double east = tile2lon(x + n, z);
         int srid = 3857;
         double[] sw = get3857(south, west);
         double[] ne = get3857(north, east);
-        init(sw[0], sw[1], ne[0], ne[1], size, size, srid);
+        init(sw[0], sw[1], ne[0], ne[1], size*n, size*n, srid);
+        blockSize = n;
     }
 
 
@@ -82,6 +126,15 @@ public class MapTile {
         int width, int height, int srid){
 
 
+      //Reset state (e.g. tile is being reused)
+        ULx = ULy = 0;
+        resX = resY = 1;
+        wkt = null;
+        geom = null;
+        yTable = null;
+        numProjected = 0;
+        textboxes = new LabelIndex();
+
 
         this.srid = srid;
         if (srid==3857){
@@ -98,15 +151,6 @@ public class MapTile {
             if (!valid(west, south, east, north)) throw new IllegalArgumentException();
 
 
-          //Set wkt
-            String NE = df.format(east) + " " + df.format(north);
-            String SE = df.format(east) + " " + df.format(south);
-            String SW = df.format(west) + " " + df.format(south);
-            String NW = df.format(west) + " " + df.format(north);
-            wkt = "POLYGON((" + NE + "," +  NW + "," + SW + "," + SE + "," + NE + "))";
-
-
-
             ULx = minX;
             ULy = maxY;
 
@@ -115,6 +159,15 @@ public class MapTile {
             resX = width  / diff(minX,maxX);
             resY = height / diff(minY,maxY);
 
+
+          //Compute constants used to project lat/lon directly to pixels
+          //x = lon*ax + bx
+          //y = by - ay*ln(tan((90+lat)*PI/360))
+            ax = (originShift / 180.0) * resX;
+            bx = -ULx * resX;
+            ay = (originShift / Math.PI) * resY;
+            by = ULy * resY;
+
         }
         else if (srid==4326){
 
@@ -124,12 +177,6 @@ public class MapTile {
 
 
 
-          //Get wkt
-            String NE = df.format(maxX) + " " + df.format(maxY);
-            String SE = df.format(maxX) + " " + df.format(minY);
-            String SW = df.format(minX) + " " + df.format(minY);
-            String NW = df.format(minX) + " " + df.format(maxY);
-            wkt = "POLYGON((" + NE + "," +  NW + "," + SW + "," + SE + "," + NE + "))";
             north = maxY;
             south = minY;
             east = maxX;
@@ -160,8 +207,13 @@ public class MapTile {
         }
 
 
-      //Create image
-        img = new javaxt.io.Image(width, height);
+      //Create image. Reuse the existing image if the tile is being reset.
+        if (img==null || img.getWidth()!=width || img.getHeight()!=height){
+            img = new javaxt.io.Image(width, height);
+        }
+        else{
+            g2d.dispose();
+        }
         g2d = img.getBufferedImage().createGraphics();
         g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         //applyQualityRenderingHints(g2d);
@@ -169,6 +221,33 @@ public class MapTile {
     }
 
 
+  //**************************************************************************
+  //** reset
+  //**************************************************************************
+  /** Used to reuse this tile for a different x,y,z tile coordinate. The
+   *  image is cleared and reused, avoiding the cost of allocating a new
+   *  image and graphics context. Note that the image returned by getImage()
+   *  is overwritten so it should not be used after the tile is reset.
+   *  Metatiles are reset to the n x n block of tiles starting at x,y. Only
+   *  tiles created from an x,y,z tile coordinate can be reset.
+   */
+    public void reset(int x, int y, int z){
+        if (blockSize<1) throw new IllegalStateException(
+        "Tile was not created from an x,y,z tile coordinate");
+        int n = blockSize;
+        double north = tile2lat(y, z);
+        double south = tile2lat(y + n, z);
+        double west = tile2lon(x, z);
+        double east = tile2lon(x + n, z);
+        double[] sw = get3857(south, west);
+        double[] ne = get3857(north, east);
+        int width = img.getWidth();
+        int height = img.getHeight();
+        init(sw[0], sw[1], ne[0], ne[1], width, height, srid);
+        clear();
+    }
+
+
   //**************************************************************************
   //** clear
   //**************************************************************************
@@ -187,6 +266,21 @@ public class MapTile {
     }
 
 
+  //**************************************************************************
+  //** setSimplify
+  //**************************************************************************
+  /** If true, lines and polygons are clipped to the tile extent (plus a small
+   *  buffer) and consecutive vertices that fall on the same pixel are
+   *  removed before they are rendered. This can significantly reduce the
+   *  time it takes to render large, complex geometries (e.g. country
+   *  boundaries at low zoom levels or long coastlines at high zoom levels).
+   *  Disabled by default.
+   */
+    public void setSimplify(boolean simplify){
+        this.simplify = simplify;
+    }
+
+
   //**************************************************************************
   //** getBounds
   //**************************************************************************
@@ -194,10 +288,29 @@ public class MapTile {
    *  coordinates (EPSG:4326)
    */
     public String getBounds(){
+        if (wkt==null){
+            String NE = format(east) + " " + format(north);
+            String SE = format(east) + " " + format(south);
+            String SW = format(west) + " " + format(south);
+            String NW = format(west) + " " + format(north);
+            wkt = "POLYGON((" + NE + "," +  NW + "," + SW + "," + SE + "," + NE + "))";
+        }
         return wkt;
     }
 
 
+  //**************************************************************************
+  //** format
+  //**************************************************************************
+  /** Returns a string representation of a coordinate, rounded to 8 decimal
+   *  places with no trailing zeros
+   */
+    private static String format(double d){
+        return BigDecimal.valueOf(d).setScale(8, RoundingMode.HALF_EVEN)
+        .stripTrailingZeros().toPlainString();
+    }
+
+
   //**************************************************************************
   //** getGeometry
   //**************************************************************************
@@ -206,7 +319,7 @@ public class MapTile {
     public Geometry getGeometry(){
         if (geom==null){
             try{
-                geom = new WKTReader().read(wkt);
+                geom = new WKTReader().read(getBounds());
             }
             catch(Exception e){
                 //should never happen
@@ -264,15 +377,50 @@ public class MapTile {
    *  transparent)
    */
     public boolean isEmpty(){
-        for (int i=0; i<img.getWidth(); i++){
-            for (int j=0; j<img.getHeight(); j++){
-                Color color = img.getColor(i, j);
-                int r = color.getRed();
-                int g = color.getGreen();
-                int b = color.getBlue();
-                int a = color.getAlpha();
-                if (a>0) return false;
+        return isEmpty(img.getBufferedImage());
+    }
 
+
+  //**************************************************************************
+  //** isEmpty
+  //**************************************************************************
+  /** Returns true if all the pixels in the given image are transparent. Reads
+   *  the backing int array directly for ARGB images and returns as soon as a
+   *  non-transparent pixel is found.
+   */
+    public static boolean isEmpty(BufferedImage bi){
+        if (bi==null) return true;
+        int width = bi.getWidth();
+        int height = bi.getHeight();
+        if (width==0 || height==0) return true;
+        if (!bi.getColorModel().hasAlpha()) return false;
+
+
+      //Scan the int array used to store ARGB pixels
+        int type = bi.getType();
+        WritableRaster raster = bi.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        if ((type==BufferedImage.TYPE_INT_ARGB || type==BufferedImage.TYPE_INT_ARGB_PRE) &&
+            buffer instanceof DataBufferInt && buffer.getNumBanks()==1 &&
+            raster.getParent()==null){
+
+            int[] data = ((DataBufferInt) buffer).getData();
+            int offset = buffer.getOffset();
+            int end = offset + width*height;
+            for (int i=offset; i<end; i++){
+                if ((data[i] >>> 24)!=0) return false;
+            }
+            return true;
+        }
+
+
+      //Scan the alpha channel row by row
+        WritableRaster alpha = bi.getAlphaRaster();
+        int[] row = new int[width];
+        for (int y=0; y<height; y++){
+            alpha.getSamples(0, y, width, 1, 0, row);
+            for (int x=0; x<width; x++){
+                if (row[x]!=0) return false;
             }
         }
         return true;
@@ -359,23 +507,33 @@ public class MapTile {
 
 
 
-      //Split text into lines as needed
+      //Split text into lines as needed. Line widths are computed using the
+      //width of the individual words so that words are only measured once.
         ArrayList<String> lines = new ArrayList<>();
+        ArrayList<Integer> lineWidths = new ArrayList<>();
         Integer textWrap = style.getTextWrap();
         String[] arr = textWrap==null ? null : text.split(" ");
         if (arr!=null && arr.length>1){
+            int spaceWidth = GlyphCache.getStringWidth(fm, " ");
             int nIndex = 0;
             while ( nIndex < arr.length ){
-                String line = arr[nIndex++];
-                while ( ( nIndex < arr.length ) && (fm.stringWidth(line + " " + arr[nIndex]) < textWrap) ) {
-                    line = line + " " + arr[nIndex];
+                String word = arr[nIndex++];
+                StringBuilder line = new StringBuilder(word);
+                int lineWidth = GlyphCache.getStringWidth(fm, word);
+                while ( nIndex < arr.length ){
+                    int width = lineWidth + spaceWidth + GlyphCache.getStringWidth(fm, arr[nIndex]);
+                    if (width >= textWrap) break;
+                    line.append(" ").append(arr[nIndex]);
+                    lineWidth = width;
                     nIndex++;
                 }
-                lines.add(line);
+                lines.add(line.toString());
+                lineWidths.add(lineWidth);
             }
         }
         else{
             lines.add(text);
+            lineWidths.add(GlyphCache.getStringWidth(fm, text));
         }
 
 
@@ -385,8 +543,7 @@ public class MapTile {
         ArrayList<Rectangle> rectangles = new ArrayList<>();
         int y = cint(xy[1]);
         for (int i=0; i<lines.size(); i++){
-            String line = lines.get(i);
-            int width = fm.stringWidth(line);
+            int width = lineWidths.get(i);
             int height = fm.getHeight();
             int descent = fm.getDescent();
             height = height-descent;
@@ -421,9 +578,7 @@ public class MapTile {
 
 
             Rectangle rect = new Rectangle(xOffset, yOffset, width, height);
-            for (Rectangle r : textboxes){
-                if (r.intersects(rect)) return;
-            }
+            if (textboxes.intersects(rect)) return;
             rectangles.add(rect);
         }
 
@@ -436,15 +591,16 @@ public class MapTile {
             Rectangle rect = rectangles.get(i);
 
             if (borderWidth!=null){
-                BasicStroke stroke = new BasicStroke(borderWidth);
-                float offset = 0f; //borderWidth/2f;
-                Shape textShape = font.createGlyphVector(g2d.getFontRenderContext(), line).getOutline(rect.x-offset, rect.y-offset);
+                FontRenderContext frc = g2d.getFontRenderContext();
+                Shape textShape = GlyphCache.getOutline(font, frc, line);
+                Shape border = GlyphCache.getBorder(font, frc, line, borderWidth);
+                g2d.translate(rect.x, rect.y);
                 g2d.setColor(borderColor);
-                g2d.setStroke(stroke);
-                g2d.draw(textShape); // draw outline
+                g2d.fill(border); // draw outline
 
                 g2d.setColor(fontColor);
                 g2d.fill(textShape); // fill the shape
+                g2d.translate(-rect.x, -rect.y);
             }
             else{
                 g2d.setColor(fontColor);
@@ -509,16 +665,20 @@ public class MapTile {
    */
     public void addLine(LineString lineString, Color lineColor, Stroke lineStyle){
 
-        Object[] obj = getCoordinates(lineString);
-        int[] xPoints = (int[]) obj[0];
-        int[] yPoints = (int[]) obj[1];
-        int numCoordinates = xPoints.length;
+        ArrayList<Object[]> lines = new ArrayList<>();
+        if (simplify) lines = getLines(lineString, getClipBuffer(lineStyle));
+        else lines.add(getCoordinates(lineString));
 
         Stroke org = g2d.getStroke();
         if (lineStyle!=null) g2d.setStroke(lineStyle);
         if (lineColor==null) lineColor = Color.black;
         g2d.setColor(lineColor);
-        g2d.drawPolyline(xPoints, yPoints, numCoordinates);
+        for (Object[] obj : lines){
+            int[] xPoints = (int[]) obj[0];
+            int[] yPoints = (int[]) obj[1];
+            int numCoordinates = xPoints.length;
+            g2d.drawPolyline(xPoints, yPoints, numCoordinates);
+        }
         g2d.setStroke(org);
     }
 
@@ -535,49 +695,32 @@ public class MapTile {
     public void addPolygon(Polygon polygon, Color lineColor, Stroke lineStyle, Color fillColor){
 
 
-      //Get outer coordinates of the polygon
-        Object[] obj;
-        if (polygon.getNumInteriorRing()==0){
-            obj = getCoordinates(polygon);
-        }
-        else{
-            obj = getCoordinates(polygon.getExteriorRing());
-        }
-        int[] xPoints = (int[]) obj[0];
-        int[] yPoints = (int[]) obj[1];
-        int numCoordinates = xPoints.length;
-
-
-
-      //Save outer coordinates into a list of rings
-        ArrayList<Object[]> rings = null;
-        if (lineColor!=null){
-            rings = new ArrayList<>();
-            rings.add(obj);
-        }
-
-
-
-      //Create area
-        java.awt.geom.Area area = new java.awt.geom.Area(new java.awt.Polygon(xPoints, yPoints, numCoordinates));
-
-
-      //Remove holes
-        for (int i=0; i<polygon.getNumInteriorRing(); i++){
-            obj = getCoordinates(polygon.getInteriorRingN(i));
-            if (rings!=null) rings.add(obj);
-            xPoints = (int[]) obj[0];
-            yPoints = (int[]) obj[1];
-            numCoordinates = xPoints.length;
-            area.subtract(new java.awt.geom.Area(new java.awt.Polygon(xPoints, yPoints, numCoordinates)));
+      //Get pixel coordinates for the outer ring and holes
+        ArrayList<Object[]> rings = new ArrayList<>();
+        double buffer = getClipBuffer(lineStyle);
+        for (int i=-1; i<polygon.getNumInteriorRing(); i++){
+            LineString ring = i<0 ? polygon.getExteriorRing() : polygon.getInteriorRingN(i);
+            Object[] obj = simplify ? getRing(ring, buffer) : getCoordinates(ring);
+            if (obj!=null && ((int[]) obj[0]).length>0) rings.add(obj);
+            else if (i<0) return; //outer ring is empty or outside the tile
         }
 
 
 
-      //Fill area
+      //Fill polygon. Holes are removed using the even-odd rule
         if (fillColor!=null){
+            Path2D path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+            for (Object[] ring : rings){
+                int[] xPoints = (int[]) ring[0];
+                int[] yPoints = (int[]) ring[1];
+                path.moveTo(xPoints[0], yPoints[0]);
+                for (int i=1; i<xPoints.length; i++){
+                    path.lineTo(xPoints[i], yPoints[i]);
+                }
+                path.closePath();
+            }
             g2d.setColor(fillColor);
-            g2d.fill(area);
+            g2d.fill(path);
         }
 
 
@@ -588,10 +731,11 @@ public class MapTile {
             g2d.setColor(lineColor);
 
             for (Object[] ring : rings){
-                xPoints = (int[]) ring[0];
-                yPoints = (int[]) ring[1];
-                numCoordinates = xPoints.length;
-                g2d.drawPolyline(xPoints, yPoints, numCoordinates);
+                int[] xPoints = (int[]) ring[0];
+                int[] yPoints = (int[]) ring[1];
+                int numCoordinates = xPoints.length;
+                if (simplify) g2d.drawPolygon(xPoints, yPoints, numCoordinates);
+                else g2d.drawPolyline(xPoints, yPoints, numCoordinates);
             }
 
             g2d.setStroke(org);
@@ -607,32 +751,230 @@ public class MapTile {
   //** getCoordinates
   //**************************************************************************
     private Object[] getCoordinates(Geometry geom){
-        Coordinate[] coordinates = geom.getCoordinates();
-        int[] xPoints = new int[coordinates.length];
-        int[] yPoints = new int[coordinates.length];
-
-        for (int i=0; i<coordinates.length; i++){
-            Coordinate coordinate = coordinates[i];
-            //xPoints[i] = cint(x(coordinate.x));
-            //yPoints[i] = cint(y(coordinate.y));
-
-            double x;
-            double y;
-            if (srid == 3857){
-                x = x(getX(coordinate.x));
-                y = y(getY(coordinate.y));
+        CoordinateSequence coordinates;
+        if (geom instanceof LineString){
+            coordinates = ((LineString) geom).getCoordinateSequence();
+        }
+        else{
+            coordinates = new CoordinateArraySequence(geom.getCoordinates());
+        }
+        int[] xPoints = new int[coordinates.size()];
+        int[] yPoints = new int[coordinates.size()];
+        getXY(coordinates, xPoints, yPoints);
+        return new Object[]{xPoints, yPoints};
+    }
+
+
+  //**************************************************************************
+  //** getClipBuffer
+  //**************************************************************************
+  /** Returns the number of pixels to extend the tile extent when clipping
+   *  geometries so that clipped edges and line caps are not visible
+   */
+    private double getClipBuffer(Stroke lineStyle){
+        double buffer = 8;
+        if (lineStyle instanceof BasicStroke){
+            buffer += ((BasicStroke) lineStyle).getLineWidth()*2;
+        }
+        return buffer;
+    }
+
+
+  //**************************************************************************
+  //** getRing
+  //**************************************************************************
+  /** Returns pixel coordinates for a polygon ring, clipped to the tile
+   *  extent plus a buffer using the Sutherland-Hodgman algorithm.
+   *  Consecutive vertices that fall on the same pixel are removed. Returns
+   *  null if the ring is outside the tile.
+   */
+    private Object[] getRing(LineString ring, double buffer){
+        CoordinateSequence coordinates = ring.getCoordinateSequence();
+        int n = coordinates.size();
+        if (n==0) return null;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        getXY(coordinates, xs, ys);
+
+
+      //Check whether the ring needs to be clipped
+        double minX = -buffer;
+        double minY = -buffer;
+        double maxX = img.getWidth()+buffer;
+        double maxY = img.getHeight()+buffer;
+        boolean inside = true;
+        double x0 = xs[0], x1 = xs[0], y0 = ys[0], y1 = ys[0];
+        for (int i=1; i<n; i++){
+            x0 = Math.min(x0, xs[i]); x1 = Math.max(x1, xs[i]);
+            y0 = Math.min(y0, ys[i]); y1 = Math.max(y1, ys[i]);
+        }
+        if (x1<minX || x0>maxX || y1<minY || y0>maxY) return null;
+        if (x0<minX || x1>maxX || y0<minY || y1>maxY) inside = false;
+
+
+      //Clip ring against each edge of the clip rectangle
+        if (!inside){
+            double[] bounds = new double[]{minX, minY, maxX, maxY};
+            for (int edge=0; edge<4 && n>0; edge++){
+                double[] cx = new double[n*2];
+                double[] cy = new double[n*2];
+                int count = 0;
+                double c = bounds[edge];
+                for (int i=0; i<n; i++){
+                    int prev = i==0 ? n-1 : i-1;
+                    double px = xs[prev], py = ys[prev];
+                    double x = xs[i], y = ys[i];
+                    boolean inPrev = isInside(edge, c, px, py);
+                    boolean inCurr = isInside(edge, c, x, y);
+                    if (inCurr != inPrev){
+                        if (edge%2==0){ //vertical edge
+                            double t = (c-px)/(x-px);
+                            cx[count] = c;
+                            cy[count] = py + t*(y-py);
+                        }
+                        else{ //horizontal edge
+                            double t = (c-py)/(y-py);
+                            cx[count] = px + t*(x-px);
+                            cy[count] = c;
+                        }
+                        count++;
+                    }
+                    if (inCurr){
+                        cx[count] = x;
+                        cy[count] = y;
+                        count++;
+                    }
+                }
+                xs = cx;
+                ys = cy;
+                n = count;
             }
-            else if (srid == 4326){
-                x = x(coordinate.x);
-                y = y(coordinate.y);
+            if (n==0) return null;
+        }
+
+        return toPixels(xs, ys, 0, n);
+    }
+
+
+  //**************************************************************************
+  //** isInside
+  //**************************************************************************
+  /** Returns true if a point is on the inside of a clip edge. Edges are
+   *  ordered minX, minY, maxX, maxY.
+   */
+    private static boolean isInside(int edge, double c, double x, double y){
+        switch (edge){
+            case 0: return x>=c;
+            case 1: return y>=c;
+            case 2: return x<=c;
+            default: return y<=c;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getLines
+  //**************************************************************************
+  /** Returns pixel coordinates for a line, clipped to the tile extent plus a
+   *  buffer using the Liang-Barsky algorithm. A line that leaves and
+   *  reenters the tile is split into multiple lines. Consecutive vertices
+   *  that fall on the same pixel are removed.
+   */
+    private ArrayList<Object[]> getLines(LineString lineString, double buffer){
+        ArrayList<Object[]> lines = new ArrayList<>();
+        CoordinateSequence coordinates = lineString.getCoordinateSequence();
+        int n = coordinates.size();
+        if (n==0) return lines;
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        getXY(coordinates, xs, ys);
+
+        double minX = -buffer;
+        double minY = -buffer;
+        double maxX = img.getWidth()+buffer;
+        double maxY = img.getHeight()+buffer;
+
+        if (n==1){
+            if (xs[0]>=minX && xs[0]<=maxX && ys[0]>=minY && ys[0]<=maxY){
+                lines.add(toPixels(xs, ys, 0, 1));
             }
-            else{
-                throw new IllegalArgumentException("Unsupported projection");
+            return lines;
+        }
+
+        double[] lx = new double[n*2];
+        double[] ly = new double[n*2];
+        int count = 0;
+        for (int i=1; i<n; i++){
+            double x0 = xs[i-1], y0 = ys[i-1];
+            double dx = xs[i]-x0, dy = ys[i]-y0;
+
+
+          //Find the part of the segment inside the clip rectangle
+            double t0 = 0, t1 = 1;
+            double[] p = new double[]{-dx, dx, -dy, dy};
+            double[] q = new double[]{x0-minX, maxX-x0, y0-minY, maxY-y0};
+            boolean visible = true;
+            for (int j=0; j<4 && visible; j++){
+                if (p[j]==0){
+                    if (q[j]<0) visible = false;
+                }
+                else{
+                    double t = q[j]/p[j];
+                    if (p[j]<0){
+                        if (t>t1) visible = false;
+                        else if (t>t0) t0 = t;
+                    }
+                    else{
+                        if (t<t0) visible = false;
+                        else if (t<t1) t1 = t;
+                    }
+                }
+            }
+
+
+          //Update line
+            if (visible){
+                if (count==0 || t0>0){
+                    if (count>0) lines.add(toPixels(lx, ly, 0, count));
+                    lx[0] = x0 + t0*dx;
+                    ly[0] = y0 + t0*dy;
+                    count = 1;
+                }
+                lx[count] = x0 + t1*dx;
+                ly[count] = y0 + t1*dy;
+                count++;
+                if (t1<1){
+                    lines.add(toPixels(lx, ly, 0, count));
+                    count = 0;
+                }
             }
+        }
+        if (count>0) lines.add(toPixels(lx, ly, 0, count));
+        return lines;
+    }
 
 
-            xPoints[i] = cint(x);
-            yPoints[i] = cint(y);
+  //**************************************************************************
+  //** toPixels
+  //**************************************************************************
+  /** Used to round pixel coordinates to the nearest pixel. Consecutive
+   *  points that fall on the same pixel are removed.
+   */
+    private static Object[] toPixels(double[] xs, double[] ys, int offset, int length){
+        int[] xPoints = new int[length];
+        int[] yPoints = new int[length];
+        int n = 0;
+        for (int i=offset; i<offset+length; i++){
+            int x = (int) Math.round(xs[i]);
+            int y = (int) Math.round(ys[i]);
+            if (n>0 && x==xPoints[n-1] && y==yPoints[n-1]) continue;
+            xPoints[n] = x;
+            yPoints[n] = y;
+            n++;
+        }
+        if (n<length){
+            xPoints = Arrays.copyOf(xPoints, n);
+            yPoints = Arrays.copyOf(yPoints, n);
         }
         return new Object[]{xPoints, yPoints};
     }
@@ -745,8 +1087,8 @@ public class MapTile {
         double x;
         double y;
         if (srid == 3857){
-            x = x(getX(lon));
-            y = y(getY(lat));
+            x = lon * ax + bx;
+            y = by - ay * Math.log(Math.tan((90 + lat) * (Math.PI / 360.0)));
         }
         else if (srid == 4326){
             x = x(lon);
@@ -759,6 +1101,153 @@ public class MapTile {
     }
 
 
+  //**************************************************************************
+  //** getXY
+  //**************************************************************************
+  /** Used to convert a sequence of geographic coordinates to pixel
+   *  coordinates. This is significantly faster than calling getXY() for
+   *  individual points since no objects are created and the projection is
+   *  only checked once. Returns the number of points.
+   *  @param coordinates Coordinates in lat/lon (EPSG:4326)
+   *  @param xPoints Array used to store x pixel values. Must be at least as
+   *  long as the coordinate sequence. Can be reused between calls.
+   *  @param yPoints Array used to store y pixel values
+   */
+    public int getXY(CoordinateSequence coordinates, double[] xPoints, double[] yPoints){
+        int n = coordinates.size();
+        if (xPoints.length<n || yPoints.length<n) throw new IllegalArgumentException("Array is too small");
+
+        if (srid == 3857){
+            double[] table = getYTable(n);
+            for (int i=0; i<n; i++){
+                xPoints[i] = coordinates.getX(i) * ax + bx;
+                yPoints[i] = getPixelY(coordinates.getY(i), table);
+            }
+        }
+        else if (srid == 4326){
+            double x0 = 180 - ULx;
+            double y0 = 90 - ULy;
+            for (int i=0; i<n; i++){
+                xPoints[i] = (coordinates.getX(i) + x0) * resX;
+                double y = (y0 - coordinates.getY(i)) * resY;
+                if (y>-0.5 && y<0.5) y = 0; //same as y()
+                yPoints[i] = y;
+            }
+        }
+        else{
+            throw new IllegalArgumentException("Unsupported projection");
+        }
+        return n;
+    }
+
+
+  //**************************************************************************
+  //** getXY
+  //**************************************************************************
+  /** Used to convert a sequence of geographic coordinates to pixel
+   *  coordinates, rounded to the nearest pixel. Returns the number of points.
+   *  See getXY(CoordinateSequence, double[], double[]) for more info.
+   */
+    public int getXY(CoordinateSequence coordinates, int[] xPoints, int[] yPoints){
+        int n = coordinates.size();
+        if (xPoints.length<n || yPoints.length<n) throw new IllegalArgumentException("Array is too small");
+
+        if (srid == 3857){
+            double[] table = getYTable(n);
+            for (int i=0; i<n; i++){
+                xPoints[i] = (int) Math.round(coordinates.getX(i) * ax + bx);
+                yPoints[i] = (int) Math.round(getPixelY(coordinates.getY(i), table));
+            }
+        }
+        else if (srid == 4326){
+            double x0 = 180 - ULx;
+            double y0 = 90 - ULy;
+            for (int i=0; i<n; i++){
+                xPoints[i] = (int) Math.round((coordinates.getX(i) + x0) * resX);
+                yPoints[i] = (int) Math.round((y0 - coordinates.getY(i)) * resY);
+            }
+        }
+        else{
+            throw new IllegalArgumentException("Unsupported projection");
+        }
+        return n;
+    }
+
+
+  //**************************************************************************
+  //** getPixelY
+  //**************************************************************************
+  /** Returns the y pixel coordinate for a given latitude (EPSG:3857 only).
+   *  Uses linear interpolation if the latitude falls within the lookup
+   *  table. Otherwise, computes the exact value.
+   */
+    private double getPixelY(double lat, double[] table){
+        if (table!=null){
+            double t = (lat - yTableMin) * yTableScale;
+            if (t>=0 && t<Y_TABLE_SIZE){
+                int i = (int) t;
+                double y0 = table[i];
+                return y0 + (table[i+1] - y0) * (t - i);
+            }
+        }
+        return by - ay * Math.log(Math.tan((90 + lat) * (Math.PI / 360.0)));
+    }
+
+
+  //**************************************************************************
+  //** getYTable
+  //**************************************************************************
+  /** Returns a lookup table of y pixel values for latitudes in and around
+   *  the tile (EPSG:3857 only). The table is only created once a large
+   *  number of coordinates have been projected so that tiles with only a
+   *  few features don't pay for it. The table is validated against the
+   *  exact formula when it is created and is discarded if the interpolation
+   *  error exceeds 1/64 of a pixel (e.g. low zoom levels where the tile
+   *  spans a large range of latitudes). Returns null if the table is not
+   *  available.
+   *  @param n Number of coordinates that are about to be projected
+   */
+    private double[] getYTable(int n){
+        if (yTable!=null || numProjected<0) return yTable;
+        numProjected += n;
+        if (numProjected<Y_TABLE_THRESHOLD) return null;
+        numProjected = -1; //don't try again
+
+
+      //Cover the tile and one tile height above and below it
+        double h = north - south;
+        double minLat = Math.max(south - h, -85.0511287798);
+        double maxLat = Math.min(north + h, 85.0511287798);
+        if (maxLat<=minLat) return null;
+        double step = (maxLat - minLat) / Y_TABLE_SIZE;
+
+
+      //Create table
+        double[] table = new double[Y_TABLE_SIZE+1];
+        for (int i=0; i<=Y_TABLE_SIZE; i++){
+            table[i] = getPixelY(minLat + i*step, null);
+        }
+
+
+      //Check interpolation error between samples
+        double maxError = 0;
+        for (int i=0; i<Y_TABLE_SIZE; i++){
+            for (double f : new double[]{0.25, 0.5, 0.75}){
+                double exact = getPixelY(minLat + (i+f)*step, null);
+                double approx = table[i] + (table[i+1] - table[i]) * f;
+                maxError = Math.max(maxError, Math.abs(exact - approx));
+            }
+        }
+        if (maxError>Y_TABLE_MAX_ERROR) return null;
+
+
+        yTableMin = minLat;
+        yTableScale = 1.0 / step;
+        yTable = table;
+        return yTable;
+    }
+
+
   //**************************************************************************
   //** lon
   //**************************************************************************
@@ -832,34 +1321,369 @@ public class MapTile {
   //** getIntersectingTiles
   //**************************************************************************
   /** Returns an array of x,y map tile coordinates that intersect a given
-   *  geometry
+   *  geometry. Tiles are sorted by row (y) and then by column (x).
    */
     public static ArrayList<int[]> getIntersectingTiles(Geometry geom, int z){
         ArrayList<int[]> tiles = new ArrayList<>();
+        getIntersectingTiles(geom, z, (x, y) -> {
+            tiles.add(new int[]{x, y});
+        });
+        tiles.sort((a, b) -> {
+            int d = Integer.compare(a[1], b[1]);
+            return d==0 ? Integer.compare(a[0], b[0]) : d;
+        });
+        return tiles;
+    }
+
+
+  //**************************************************************************
+  //** getIntersectingTiles
+  //**************************************************************************
+  /** Used to find map tiles that intersect a given geometry. Each tile is
+   *  passed to the visitor exactly once, in no particular order. Tiles
+   *  are found by rasterizing the geometry onto the tile grid instead of
+   *  testing every tile in the geometry's envelope:
+   *  <ul>
+   *  <li>Lines and polygon rings are walked segment by segment to find the
+   *  tiles they pass through ("edge" tiles). Edge tiles are verified with
+   *  an exact intersection test.</li>
+   *  <li>Polygon interiors are filled row by row using a scanline at the
+   *  center of each row. Interior tiles are not tested.</li>
+   *  </ul>
+   *  @param geom Geometry in lat/lon coordinates (EPSG:4326)
+   */
+    public static void getIntersectingTiles(Geometry geom, int z, TileVisitor visitor){
+        if (geom==null || geom.isEmpty()) return;
         if (geom instanceof Point){
             Point point = (Point) geom;
-            tiles.add(getTileCoordinate(point.getY(), point.getX(), z));
+            int[] tile = getTileCoordinate(point.getY(), point.getX(), z);
+            visitor.visit(tile[0], tile[1]);
+            return;
+        }
+        new TileCoverage(geom, z, visitor).run();
+    }
+
+
+  //**************************************************************************
+  //** TileVisitor
+  //**************************************************************************
+  /** Used to process map tiles found via getIntersectingTiles()
+   */
+    public static interface TileVisitor {
+        public void visit(int x, int y);
+    }
+
+
+  //**************************************************************************
+  //** TileCoverage
+  //**************************************************************************
+  /** Used to find tiles that intersect a geometry. Coordinates are in
+   *  lat/lon so tile columns are evenly spaced while tile rows are not.
+   */
+    private static class TileCoverage {
+
+        private final Geometry geom;
+        private final int z;
+        private final int n; //number of tiles along each axis
+        private final TileVisitor visitor;
+        private final HashSet<Long> edges = new HashSet<>();
+        private final ArrayList<Polygon> polygons = new ArrayList<>();
+        private static final double EPSILON = 1e-9;
+
+        public TileCoverage(Geometry geom, int z, TileVisitor visitor){
+            if (z<0 || z>30) throw new IllegalArgumentException("Invalid zoom level");
+            this.geom = geom;
+            this.z = z;
+            this.n = 1 << z;
+            this.visitor = visitor;
+        }
+
+        public void run(){
+
+          //Find edge tiles
+            addEdges(geom);
+
+
+          //Fill polygon interiors, skipping edge tiles
+            if (!polygons.isEmpty()) fill();
+
+
+          //Verify edge tiles
+            org.locationtech.jts.geom.prep.PreparedGeometry prepared =
+            org.locationtech.jts.geom.prep.PreparedGeometryFactory.prepare(geom);
+            for (long key : edges){
+                int x = (int) (key >> 32);
+                int y = (int) key;
+                if (prepared.intersects(getTileGeometry(x, y, z))){
+                    visitor.visit(x, y);
+                }
+            }
+        }
+
+
+      /** Used to add tiles that intersect the points, lines, and polygon
+       *  rings in a geometry to the "edges" set
+       */
+        private void addEdges(Geometry geom){
+            if (geom.isEmpty()) return;
+            if (geom instanceof Point){
+                Point point = (Point) geom;
+                addPoint(point.getX(), point.getY());
+            }
+            else if (geom instanceof LineString){
+                addLine(((LineString) geom).getCoordinateSequence());
+            }
+            else if (geom instanceof Polygon){
+                Polygon polygon = (Polygon) geom;
+                polygons.add(polygon);
+                addLine(polygon.getExteriorRing().getCoordinateSequence());
+                for (int i=0; i<polygon.getNumInteriorRing(); i++){
+                    addLine(polygon.getInteriorRingN(i).getCoordinateSequence());
+                }
+            }
+            else{
+                for (int i=0; i<geom.getNumGeometries(); i++){
+                    addEdges(geom.getGeometryN(i));
+                }
+            }
         }
-        else{
 
-            int[] arr = getTileExtents(geom, z);
 
-            int minX = arr[0];
-            int minY = arr[1];
-            int maxX = arr[2];
-            int maxY = arr[3];
+      /** Used to add tiles that intersect a line */
+        private void addLine(CoordinateSequence coordinates){
+            int numPoints = coordinates.size();
+            if (numPoints==1) addPoint(coordinates.getX(0), coordinates.getY(0));
+            for (int i=1; i<numPoints; i++){
+                addSegment(coordinates.getX(i-1), coordinates.getY(i-1),
+                coordinates.getX(i), coordinates.getY(i));
+            }
+        }
+
+
+      /** Used to add tiles that intersect a line segment. Walks the segment
+       *  from one tile boundary to the next (DDA). Tiles near points where
+       *  the segment crosses a boundary are also added so that tiles that
+       *  only touch the segment (e.g. at a corner) are not missed.
+       */
+        private void addSegment(double x0, double y0, double x1, double y1){
+            addPoint(x0, y0);
+            addPoint(x1, y1);
+
+            int c0 = col(x0);
+            int c1 = col(x1);
+            int r0 = row(y0);
+            int r1 = row(y1);
+            if (c0==c1 && r0==r1) return;
+
+            double dx = x1-x0;
+            double dy = y1-y0;
+            int numCols = Math.abs(c1-c0);
+            int numRows = Math.abs(r1-r0);
+            int i = 0;
+            int j = 0;
+            double prev = 0;
+            while (i<numCols || j<numRows){
+
+              //Find the next column and row boundaries along the segment
+                double tc = 2;
+                if (i<numCols){
+                    int c = c1>c0 ? c0+1+i : c0-i;
+                    tc = (tile2lon(c, z)-x0)/dx;
+                }
+                double tr = 2;
+                if (j<numRows){
+                    int r = r1>r0 ? r0+1+j : r0-j;
+                    tr = (tile2lat(r, z)-y0)/dy;
+                }
+                double t = Math.max(prev, Math.min(1, Math.min(tc, tr)));
+
+
+              //Add the tile between the previous boundary and this one
+                double mid = (prev+t)/2;
+                addTile(col(x0+mid*dx), row(y0+mid*dy));
+                addPoint(x0+t*dx, y0+t*dy);
+
+                if (tc<=tr) i++;
+                else j++;
+                prev = t;
+            }
+
+            double mid = (prev+1)/2;
+            addTile(col(x0+mid*dx), row(y0+mid*dy));
+        }
+
+
+      /** Used to add tiles within a small distance of a point */
+        private void addPoint(double x, double y){
+            int c0 = col(x-EPSILON);
+            int c1 = col(x+EPSILON);
+            int r0 = row(y+EPSILON);
+            int r1 = row(y-EPSILON);
+            for (int c=c0; c<=c1; c++){
+                for (int r=r0; r<=r1; r++){
+                    addTile(c, r);
+                }
+            }
+        }
+
+
+        private void addTile(int x, int y){
+            edges.add(getKey(x, y));
+        }
+
+
+      /** Used to find tiles inside the polygons using a scanline at the
+       *  center of each tile row. Uses the even-odd rule for each polygon
+       *  and merges the results so that overlapping polygons don't produce
+       *  duplicate tiles.
+       */
+        private void fill(){
+
 
+          //Get rows
+            double north = -90;
+            double south = 90;
+            for (Polygon polygon : polygons){
+                Envelope e = polygon.getEnvelopeInternal();
+                north = Math.max(north, e.getMaxY());
+                south = Math.min(south, e.getMinY());
+            }
+            int minRow = row(north);
+            int maxRow = row(south);
+            int numRows = maxRow-minRow+1;
+            double[] centers = new double[numRows];
+            for (int i=0; i<numRows; i++){
+                int r = minRow+i;
+                centers[i] = (tile2lat(r, z)+tile2lat(r+1, z))/2;
+            }
+
+
+          //Find intervals inside each polygon, by row
+            double[][] intervals = new double[numRows][];
+            int[] numIntervals = new int[numRows];
+            for (Polygon polygon : polygons){
+                double[][] crossings = new double[numRows][];
+                int[] numCrossings = new int[numRows];
+                addCrossings(polygon.getExteriorRing().getCoordinateSequence(),
+                minRow, centers, crossings, numCrossings);
+                for (int i=0; i<polygon.getNumInteriorRing(); i++){
+                    addCrossings(polygon.getInteriorRingN(i).getCoordinateSequence(),
+                    minRow, centers, crossings, numCrossings);
+                }
+
+                for (int i=0; i<numRows; i++){
+                    double[] arr = crossings[i];
+                    if (arr==null) continue;
+                    int count = numCrossings[i] - (numCrossings[i]%2);
+                    Arrays.sort(arr, 0, numCrossings[i]);
+                    for (int k=0; k<count; k++){
+                        numIntervals[i] = append(intervals, numIntervals[i], i, arr[k]);
+                    }
+                }
+            }
 
-            for (int y=minY; y<=maxY; y++){
-                for (int x=minX; x<=maxX; x++){
-                    Geometry g = getTileGeometry(x,y,z);
-                    if (g.intersects(geom)){
-                        tiles.add(new int[]{x,y});
+
+          //Merge intervals and add tiles
+            for (int i=0; i<numRows; i++){
+                int count = numIntervals[i]/2;
+                if (count==0) continue;
+                double[][] arr = new double[count][];
+                for (int k=0; k<count; k++){
+                    arr[k] = new double[]{intervals[i][k*2], intervals[i][k*2+1]};
+                }
+                Arrays.sort(arr, (a, b) -> Double.compare(a[0], b[0]));
+
+                int r = minRow+i;
+                double start = arr[0][0];
+                double end = arr[0][1];
+                for (int k=1; k<=count; k++){
+                    if (k<count && arr[k][0]<=end){
+                        end = Math.max(end, arr[k][1]);
+                        continue;
+                    }
+                    addInterior(start, end, r);
+                    if (k<count){
+                        start = arr[k][0];
+                        end = arr[k][1];
                     }
                 }
             }
         }
-        return tiles;
+
+
+      /** Used to find where the edges of a ring cross the center of each
+       *  row
+       */
+        private void addCrossings(CoordinateSequence coordinates, int minRow,
+            double[] centers, double[][] crossings, int[] numCrossings){
+            for (int k=1; k<coordinates.size(); k++){
+                double x0 = coordinates.getX(k-1);
+                double y0 = coordinates.getY(k-1);
+                double x1 = coordinates.getX(k);
+                double y1 = coordinates.getY(k);
+                if (y0==y1) continue;
+
+                int r0 = Math.max(row(Math.max(y0, y1)), minRow) - minRow;
+                int r1 = Math.min(row(Math.min(y0, y1)) - minRow, centers.length-1);
+                for (int i=r0; i<=r1; i++){
+                    double y = centers[i];
+                    if ((y0<=y) != (y1<=y)){
+                        double x = x0 + (y-y0)*(x1-x0)/(y1-y0);
+                        numCrossings[i] = append(crossings, numCrossings[i], i, x);
+                    }
+                }
+            }
+        }
+
+
+      /** Used to add tiles in a given row with centers inside an interval.
+       *  Edge tiles are skipped.
+       */
+        private void addInterior(double west, double east, int r){
+            double c0 = (west+180.0)/360.0*n - 0.5;
+            double c1 = (east+180.0)/360.0*n - 0.5;
+            int start = Math.max((int) Math.ceil(c0), 0);
+            int end = Math.min((int) Math.floor(c1), n-1);
+            for (int c=start; c<=end; c++){
+                if (!edges.contains(getKey(c, r))) visitor.visit(c, r);
+            }
+        }
+
+
+      /** Returns the column for a given longitude */
+        private int col(double lon){
+            double x = (clip(lon, -180, 180)+180.0)/360.0*n;
+            return Math.min((int) x, n-1);
+        }
+
+
+      /** Returns the row for a given latitude */
+        private int row(double lat){
+            double latitude = clip(lat, -85.05112878, 85.05112878) * Math.PI / 180.0;
+            double y = (1.0 - Math.log(Math.tan(latitude) + 1.0/Math.cos(latitude)) / Math.PI) / 2.0 * n;
+            return Math.max(0, Math.min((int) y, n-1));
+        }
+
+
+        private static long getKey(int x, int y){
+            return (((long) x) << 32) | (y & 0xffffffffL);
+        }
+
+
+      /** Used to add a value to a growable array. Returns the new size. */
+        private static int append(double[][] lists, int size, int i, double value){
+            double[] arr = lists[i];
+            if (arr==null){
+                arr = new double[8];
+                lists[i] = arr;
+            }
+            else if (size==arr.length){
+                arr = Arrays.copyOf(arr, size*2);
+                lists[i] = arr;
+            }
+            arr[size] = value;
+            return size+1;
+        }
     }
 
 
@@ -915,7 +1739,7 @@ public class MapTile {
   /** Returns the west tile coordinate
    */
     public static double tile2lon(int x, int z) {
-        return x / Math.pow(2.0, z) * 360.0 - 180;
+        return x / Math.scalb(1.0, z) * 360.0 - 180;
     }
 
 
@@ -925,7 +1749,7 @@ public class MapTile {
   /** Returns the north tile coordinate
    */
     public static double tile2lat(int y, int z) {
-        double n = Math.PI - (2.0 * Math.PI * y) / Math.pow(2.0, z);
+        double n = Math.PI - (2.0 * Math.PI * y) / Math.scalb(1.0, z);
         return Math.toDegrees(Math.atan(Math.sinh(n)));
     }
 
@@ -953,18 +1777,15 @@ public class MapTile {
             return new int[]{x, y};
         }
         else if (n<z){
-            int d = z-n;
-            double m = Math.pow(2, d);
-
-            int x1 = (int) Math.floor(x/m);
-            int y1 = (int) Math.floor(y/m);
+            int d = Math.min(z-n, 31);
+            int x1 = x >> d; //same as floor(x/2^d)
+            int y1 = y >> d;
             return new int[]{x1, y1};
         }
         else{
             int d = n-z;
-            int m = (int) Math.pow(2, d);
-            int x1 = x*m;
-            int y1 = y*m;
+            int x1 = x << d;
+            int y1 = y << d;
             return new int[]{x1, y1};
         }
     }
@@ -992,6 +1813,131 @@ public class MapTile {
     }
 
 
+  //**************************************************************************
+  //** getTileCoordinates
+  //**************************************************************************
+  /** Used to compute tile coordinates for a large number of points. Tile
+   *  coordinates are packed into a long (x in the upper 32 bits, y in the
+   *  lower 32 bits). Use getTileX() and getTileY() to unpack the values.
+   *  Uses the same formula as getTileCoordinate(lat, lng, zoom) but no
+   *  objects are created.
+   *  @param lats Latitudes
+   *  @param lons Longitudes
+   *  @param zoom Zoom level
+   *  @param tiles Array used to store the packed tile coordinates. Must be
+   *  at least as long as the lats/lons arrays.
+   */
+    public static void getTileCoordinates(double[] lats, double[] lons, int zoom, long[] tiles){
+        getTileCoordinates(lats, lons, zoom, tiles, false);
+    }
+
+
+  //**************************************************************************
+  //** getTileCoordinates
+  //**************************************************************************
+  /** Used to compute tile coordinates for a large number of points.
+   *  @param parallel If true, the points are split into chunks that are
+   *  processed in parallel using the common fork/join pool
+   */
+    public static void getTileCoordinates(double[] lats, double[] lons, int zoom, long[] tiles, boolean parallel){
+        int n = lats.length;
+        if (lons.length!=n) throw new IllegalArgumentException("Array lengths don't match");
+        if (tiles.length<n) throw new IllegalArgumentException("Array is too small");
+
+        if (parallel && n>TileCoordinateTask.THRESHOLD){
+            java.util.concurrent.ForkJoinPool.commonPool().invoke(
+                new TileCoordinateTask(lats, lons, zoom, tiles, 0, n)
+            );
+        }
+        else{
+            getTileCoordinates(lats, lons, zoom, tiles, 0, n);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getTileCoordinates
+  //**************************************************************************
+  /** Used to compute tile coordinates for a range of points
+   */
+    private static void getTileCoordinates(double[] lats, double[] lons, int zoom, long[] tiles,
+        int start, int end){
+        double numTiles = 1 << zoom;
+        for (int i=start; i<end; i++){
+            double lat = lats[i];
+            double latitude = clip(lat, -85.05112878, 85.05112878);
+            double longitude = clip(lons[i], -180, 180);
+
+            double x = (longitude + 180.0) / 360.0 * numTiles;
+            double y = (1.0 - Math.log(Math.tan(latitude * Math.PI / 180.0) + 1.0 / Math.cos(lat* Math.PI / 180)) / Math.PI) / 2.0 * numTiles;
+
+            tiles[i] = (((long) trunc(x)) << 32) | (trunc(y) & 0xffffffffL);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getTileX
+  //**************************************************************************
+  /** Returns the x coordinate from a packed tile coordinate (see
+   *  getTileCoordinates)
+   */
+    public static int getTileX(long tile){
+        return (int) (tile >> 32);
+    }
+
+
+  //**************************************************************************
+  //** getTileY
+  //**************************************************************************
+  /** Returns the y coordinate from a packed tile coordinate (see
+   *  getTileCoordinates)
+   */
+    public static int getTileY(long tile){
+        return (int) tile;
+    }
+
+
+  //**************************************************************************
+  //** TileCoordinateTask
+  //**************************************************************************
+  /** Used to compute tile coordinates in parallel by recursively splitting
+   *  the points into smaller chunks
+   */
+    private static class TileCoordinateTask extends java.util.concurrent.RecursiveAction {
+
+        private static final int THRESHOLD = 16384;
+        private final double[] lats;
+        private final double[] lons;
+        private final int zoom;
+        private final long[] tiles;
+        private final int start;
+        private final int end;
+
+        public TileCoordinateTask(double[] lats, double[] lons, int zoom, long[] tiles, int start, int end){
+            this.lats = lats;
+            this.lons = lons;
+            this.zoom = zoom;
+            this.tiles = tiles;
+            this.start = start;
+            this.end = end;
+        }
+
+        protected void compute(){
+            if (end-start<=THRESHOLD){
+                getTileCoordinates(lats, lons, zoom, tiles, start, end);
+            }
+            else{
+                int mid = (start+end) >>> 1;
+                invokeAll(
+                    new TileCoordinateTask(lats, lons, zoom, tiles, start, mid),
+                    new TileCoordinateTask(lats, lons, zoom, tiles, mid, end)
+                );
+            }
+        }
+    }
+
+
     private static double clip(double n, double minValue, double maxValue){
         return Math.min(Math.max(n, minValue), maxValue);
     }
@@ -1006,7 +1952,7 @@ public class MapTile {
    *  of it.
    */
     private static int trunc(double n){
-        return new BigDecimal(n).toBigInteger().intValue();
+        return (int) n; //casting rounds toward zero
     }
 
 
@@ -1015,7 +1961,7 @@ public class MapTile {
   //**************************************************************************
   /** Converts a double to an integer. Rounds the double to the nearest int.
    */
-    private int cint(Double d){
+    private int cint(double d){
         return (int)Math.round(d);
     }
 
@@ -1055,4 +2001,110 @@ public class MapTile {
         return (Math.abs(a - b) < .000001);
     }
 
-}
\ No newline at end of file
+
+  //**************************************************************************
+  //** LabelIndex
+  //**************************************************************************
+  /** Used to find labels that intersect a given rectangle. Labels are stored
+   *  in a uniform grid so that each lookup only needs to check labels in
+   *  nearby cells instead of every label in the tile.
+   */
+    private static class LabelIndex {
+
+        private HashMap<Long, ArrayList<Rectangle>> cells = new HashMap<>();
+        private static final int CELL_SIZE = 64;
+
+        public boolean intersects(Rectangle rect){
+            if (cells.isEmpty()) return false;
+            int x0 = Math.floorDiv(rect.x, CELL_SIZE);
+            int y0 = Math.floorDiv(rect.y, CELL_SIZE);
+            int x1 = Math.floorDiv(rect.x+rect.width, CELL_SIZE);
+            int y1 = Math.floorDiv(rect.y+rect.height, CELL_SIZE);
+            for (int x=x0; x<=x1; x++){
+                for (int y=y0; y<=y1; y++){
+                    ArrayList<Rectangle> cell = cells.get(getKey(x, y));
+                    if (cell==null) continue;
+                    for (Rectangle r : cell){
+                        if (r.intersects(rect)) return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        public void add(Rectangle rect){
+            int x0 = Math.floorDiv(rect.x, CELL_SIZE);
+            int y0 = Math.floorDiv(rect.y, CELL_SIZE);
+            int x1 = Math.floorDiv(rect.x+rect.width, CELL_SIZE);
+            int y1 = Math.floorDiv(rect.y+rect.height, CELL_SIZE);
+            for (int x=x0; x<=x1; x++){
+                for (int y=y0; y<=y1; y++){
+                    Long key = getKey(x, y);
+                    ArrayList<Rectangle> cell = cells.get(key);
+                    if (cell==null){
+                        cell = new ArrayList<>();
+                        cells.put(key, cell);
+                    }
+                    cell.add(rect);
+                }
+            }
+        }
+
+        private static long getKey(int x, int y){
+            return (((long) x) << 32) | (y & 0xffffffffL);
+        }
+    }
+
+
+  //**************************************************************************
+  //** Pool
+  //**************************************************************************
+  /** Used to reuse MapTiles (and their images) when rendering a large number
+   *  of tiles. Example:
+   <pre>
+    MapTile.Pool pool = new MapTile.Pool(256, 16);
+    MapTile mapTile = pool.get(x, y, z);
+    try{
+        //render features and save image...
+    }
+    finally{
+        pool.release(mapTile);
+    }
+   </pre>
+   *  Tiles should not be used after they are released. Pools are thread-safe.
+   */
+    public static class Pool {
+
+        private final int size;
+        private final ArrayBlockingQueue<MapTile> tiles;
+
+      /** @param size Width/height of the tiles, in pixels
+       *  @param maxTiles Max number of idle tiles to keep in the pool
+       */
+        public Pool(int size, int maxTiles){
+            if (size<1) throw new IllegalArgumentException("Invalid size");
+            if (maxTiles<1) throw new IllegalArgumentException("Invalid maxTiles");
+            this.size = size;
+            this.tiles = new ArrayBlockingQueue<>(maxTiles);
+        }
+
+      /** Returns a tile from the pool, reset to the given x,y,z tile
+       *  coordinate. Creates a new tile if the pool is empty.
+       */
+        public MapTile get(int x, int y, int z){
+            MapTile mapTile = tiles.poll();
+            if (mapTile==null) return new MapTile(x, y, z, size);
+            mapTile.reset(x, y, z);
+            return mapTile;
+        }
+
+      /** Used to return a tile to the pool. The tile is discarded if the
+       *  pool is full.
+       */
+        public void release(MapTile mapTile){
+            if (mapTile==null || mapTile.blockSize!=1 ||
+                mapTile.getWidth()!=size || mapTile.getHeight()!=size) return;
+            tiles.offer(mapTile);
+        }
+    }
+}
@@ -0,0 +1,606 @@
+package com.kartographia.map;
+import javaxt.io.Directory;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.StampedLock;
+
+//******************************************************************************
+//**  PackedTileStore
+//******************************************************************************
+/**
+ *   Used to store image tiles in a small number of large, append-only
+ *   segment files instead of one file per tile. Each record in a segment
+ *   consists of a key and the encoded image:
+ <pre>
+    [int keyLength][key (UTF-8)][int dataLength][data]
+ </pre>
+ *   A dataLength of -1 is used to mark a deleted tile. An in-memory index
+ *   is rebuilt by scanning the segments when the store is opened. The index
+ *   is an open-addressing hash table that maps a 64-bit hash of each key to
+ *   the location of its record (16 bytes per slot). Hash collisions are
+ *   resolved by comparing the key stored in the segment record. Lookups
+ *   use optimistic reads so they do not block or contend with writers.
+ *   <p/>
+ *   Segments that are full (sealed) are memory-mapped once so reads do not
+ *   require any system calls or heap copies. Tiles in the active segment
+ *   are read using positional reads. Note that space used by deleted or
+ *   replaced tiles is not reclaimed.
+ *
+ ******************************************************************************/
+
+public class PackedTileStore implements TileStore {
+
+    private Path dir;
+    private long maxSegmentSize;
+    private final LocationIndex index = new LocationIndex();
+    private volatile FileChannel[] segments = new FileChannel[0];
+    private volatile MappedByteBuffer[] mappings = new MappedByteBuffer[0];
+    private FileChannel activeSegment;
+    private long activeSize;
+    private volatile boolean closed = false;
+
+    private static final String SEGMENT_PREFIX = "tiles.";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Creates a new store using segments with a max size of 1 GB
+   */
+    public PackedTileStore(Directory dir) throws IOException {
+        this(dir, 1024*1024*1024);
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param dir Directory used to store segment files
+   *  @param maxSegmentSize Maximum size of a segment file, in bytes. New
+   *  segments are created as needed. Must be less than 2 GB.
+   */
+    public PackedTileStore(Directory dir, long maxSegmentSize) throws IOException {
+        if (maxSegmentSize<1 || maxSegmentSize>Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Invalid maxSegmentSize");
+
+        if (!dir.exists()) dir.create();
+        if (!dir.exists()) throw new IllegalArgumentException("Invalid directory");
+        this.dir = dir.toFile().toPath();
+        this.maxSegmentSize = maxSegmentSize;
+
+
+      //Open existing segments and build index
+        int numSegments = 0;
+        while (Files.exists(getSegmentPath(numSegments))) numSegments++;
+        for (int i=0; i<numSegments; i++){
+            FileChannel channel = FileChannel.open(getSegmentPath(i),
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+            addSegment(channel);
+            scan(i, channel);
+            if (i<numSegments-1) seal(i, channel);
+        }
+
+
+      //Set active segment
+        if (numSegments==0) addSegment();
+        else{
+            activeSegment = segments[numSegments-1];
+            activeSize = activeSegment.size();
+        }
+    }
+
+
+  //**************************************************************************
+  //** exists
+  //**************************************************************************
+    public boolean exists(String key){
+        try{
+            return find(key)!=null;
+        }
+        catch(IOException e){
+            throw new RuntimeException(e);
+        }
+    }
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+  /** Returns the encoded image for a given key. Tiles in sealed segments are
+   *  returned as read-only slices of a memory-mapped segment. Tiles in the
+   *  active segment are copied into a new buffer. Returns null if the store
+   *  does not contain a tile for the key.
+   */
+    public ByteBuffer read(String key) throws IOException {
+        Record record = find(key);
+        if (record==null) return null;
+        return read(record.segment, record.offset, record.length);
+    }
+
+
+  //**************************************************************************
+  //** transferTo
+  //**************************************************************************
+  /** Used to write a tile to a channel using FileChannel.transferTo() on the
+   *  underlying segment so the bytes are not copied into the Java heap.
+   */
+    public long transferTo(String key, WritableByteChannel target) throws IOException {
+        Record record = find(key);
+        if (record==null) return -1;
+        FileChannel channel = getChannel(record.segment);
+        return TileStore.transferTo(channel, record.offset, record.length, target);
+    }
+
+
+  //**************************************************************************
+  //** write
+  //**************************************************************************
+    public void write(String key, byte[] bytes) throws IOException {
+        append(key, bytes);
+    }
+
+
+  //**************************************************************************
+  //** delete
+  //**************************************************************************
+    public void delete(String key) throws IOException {
+        if (find(key)==null) return;
+        append(key, null);
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+    public synchronized void close() throws IOException {
+        if (closed) return;
+        closed = true;
+        for (FileChannel channel : segments){
+            channel.close();
+        }
+        mappings = new MappedByteBuffer[0];
+        index.clear();
+    }
+
+
+  //**************************************************************************
+  //** size
+  //**************************************************************************
+  /** Returns the number of tiles in the store
+   */
+    public int size(){
+        return index.size();
+    }
+
+
+  //**************************************************************************
+  //** find
+  //**************************************************************************
+  /** Returns the location of the data associated with a given key. Returns
+   *  null if the store does not contain a tile for the key.
+   */
+    private Record find(String key) throws IOException {
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        for (long location : index.get(hash(k))){
+            Record record = getRecord(location, k);
+            if (record!=null) return record;
+        }
+        return null;
+    }
+
+
+  //**************************************************************************
+  //** getRecord
+  //**************************************************************************
+  /** Reads the record header at a given location. Returns null if the key in
+   *  the record does not match the given key (hash collision).
+   */
+    private Record getRecord(long location, byte[] k) throws IOException {
+        int segment = (int) (location >>> OFFSET_BITS);
+        long position = location & OFFSET_MASK;
+        ByteBuffer header = read(segment, position, 4 + k.length + 4);
+        if (header.getInt(0)!=k.length) return null;
+        for (int i=0; i<k.length; i++){
+            if (header.get(4+i)!=k[i]) return null;
+        }
+        int dataLength = header.getInt(4+k.length);
+        return new Record(segment, position + 4 + k.length + 4, dataLength);
+    }
+
+
+  //**************************************************************************
+  //** read
+  //**************************************************************************
+  /** Returns a range of bytes from a segment. Uses the memory-mapped buffer
+   *  if the segment is sealed. Otherwise, reads the bytes from the segment
+   *  using a positional read so that no locks are required.
+   */
+    private ByteBuffer read(int segment, long position, int length) throws IOException {
+        if (closed) throw new IOException("Store is closed");
+
+        MappedByteBuffer[] mappings = this.mappings;
+        if (segment<mappings.length && mappings[segment]!=null){
+            ByteBuffer buffer = mappings[segment].duplicate();
+            buffer.position((int) position);
+            buffer.limit((int) position + length);
+            return buffer.slice();
+        }
+
+        FileChannel channel = getChannel(segment);
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()){
+            int n = channel.read(buffer, position+buffer.position());
+            if (n<0) throw new IOException("Unexpected end of segment");
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+
+  //**************************************************************************
+  //** getChannel
+  //**************************************************************************
+    private FileChannel getChannel(int segment) throws IOException {
+        FileChannel[] segments = this.segments;
+        if (closed || segment>=segments.length) throw new IOException("Store is closed");
+        return segments[segment];
+    }
+
+
+  //**************************************************************************
+  //** append
+  //**************************************************************************
+  /** Used to append a record to the active segment and update the index
+   *  @param bytes Encoded image. If null, writes a record used to mark the
+   *  tile as deleted.
+   */
+    private synchronized void append(String key, byte[] bytes) throws IOException {
+        if (closed) throw new IOException("Store is closed");
+
+        byte[] k = key.getBytes(StandardCharsets.UTF_8);
+        int dataLength = bytes==null ? -1 : bytes.length;
+        int recordSize = 4 + k.length + 4 + Math.max(dataLength, 0);
+        if (activeSize>0 && activeSize+recordSize>maxSegmentSize){
+            seal(segments.length-1, activeSegment);
+            addSegment();
+        }
+        if (activeSize+recordSize>maxSegmentSize)
+            throw new IOException("Tile exceeds maxSegmentSize");
+
+
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(k.length);
+        record.put(k);
+        record.putInt(dataLength);
+        if (bytes!=null) record.put(bytes);
+        record.flip();
+
+        long position = activeSize;
+        while (record.hasRemaining()){
+            position += activeSegment.write(record, position);
+        }
+
+
+        long location = (((long) segments.length-1) << OFFSET_BITS) | activeSize;
+        activeSize = position;
+        update(k, location, bytes==null);
+    }
+
+
+  //**************************************************************************
+  //** update
+  //**************************************************************************
+  /** Used to add, replace, or remove an entry in the index. Entries with the
+   *  same hash are compared using the key stored in the segment record.
+   */
+    private void update(byte[] k, long location, boolean delete) throws IOException {
+        long hash = hash(k);
+        for (long prevLocation : index.get(hash)){
+            if (getRecord(prevLocation, k)!=null){
+                if (delete) index.remove(hash, prevLocation);
+                else index.replace(hash, prevLocation, location);
+                return;
+            }
+        }
+        if (!delete) index.add(hash, location);
+    }
+
+
+  //**************************************************************************
+  //** scan
+  //**************************************************************************
+  /** Used to add records in a segment to the index. Truncates the segment if
+   *  the last record is incomplete (e.g. after a crash).
+   */
+    private void scan(int segment, FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size==0) return;
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+        int position = 0;
+        while (position<size){
+            if (position+4>size) break;
+            int keyLength = buffer.getInt(position);
+            if (keyLength<0 || position+4L+keyLength+4>size) break;
+
+            byte[] k = new byte[keyLength];
+            buffer.position(position+4);
+            buffer.get(k);
+
+            int offset = position+4+keyLength+4;
+            int dataLength = buffer.getInt(offset-4);
+            if (dataLength>=0 && ((long) offset)+dataLength>size) break;
+
+            update(k, (((long) segment) << OFFSET_BITS) | position, dataLength<0);
+
+            position = offset + Math.max(dataLength, 0);
+        }
+
+        if (position<size) channel.truncate(position);
+    }
+
+
+  //**************************************************************************
+  //** addSegment
+  //**************************************************************************
+  /** Used to create a new segment and make it the active segment
+   */
+    private void addSegment() throws IOException {
+        FileChannel channel = FileChannel.open(getSegmentPath(segments.length),
+        StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        addSegment(channel);
+        activeSegment = channel;
+        activeSize = channel.size();
+    }
+
+
+  //**************************************************************************
+  //** addSegment
+  //**************************************************************************
+  /** Used to update the segments array. The array is copied so that readers
+   *  can access the segments without synchronization.
+   */
+    private synchronized void addSegment(FileChannel channel){
+        FileChannel[] arr = Arrays.copyOf(segments, segments.length+1);
+        arr[arr.length-1] = channel;
+        segments = arr;
+    }
+
+
+  //**************************************************************************
+  //** seal
+  //**************************************************************************
+  /** Used to memory-map a segment that will no longer be written to. Each
+   *  segment is mapped once. The mappings array is copied so that readers
+   *  can access the mappings without synchronization.
+   */
+    private synchronized void seal(int segment, FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size==0) return;
+        MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        MappedByteBuffer[] arr = Arrays.copyOf(mappings, Math.max(mappings.length, segment+1));
+        arr[segment] = mapping;
+        mappings = arr;
+    }
+
+
+  //**************************************************************************
+  //** getSegmentPath
+  //**************************************************************************
+    private Path getSegmentPath(int segment){
+        return dir.resolve(SEGMENT_PREFIX + String.format("%05d", segment) + SEGMENT_SUFFIX);
+    }
+
+
+  //**************************************************************************
+  //** hash
+  //**************************************************************************
+  /** Returns a 64-bit hash for a given key. Zero is reserved for empty slots
+   *  in the index.
+   */
+    private static long hash(byte[] key){
+        long h = 0xcbf29ce484222325L; //FNV-1a
+        for (byte b : key){
+            h ^= (b & 0xff);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33; //MurmurHash3 finalizer
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h==0 ? 1 : h;
+    }
+
+
+  //**************************************************************************
+  //** Record
+  //**************************************************************************
+  /** Location of the data associated with a tile
+   */
+    private static class Record {
+        private final int segment;
+        private final long offset;
+        private final int length;
+
+        public Record(int segment, long offset, int length){
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+
+  //**************************************************************************
+  //** LocationIndex
+  //**************************************************************************
+  /** Open-addressing hash table used to map key hashes to record locations
+   *  (segment and offset). More than one entry may have the same hash. The
+   *  caller is responsible for comparing keys. Hashes and locations are
+   *  stored side by side in a single array. Lookups use an optimistic read
+   *  and only fall back to a read lock if the table was modified while it
+   *  was being read.
+   */
+    private static class LocationIndex {
+
+        private static final long[] EMPTY = new long[0];
+        private final StampedLock lock = new StampedLock();
+        private long[] table = new long[2048]; //hash, location, hash, location...
+        private int size = 0;
+
+      /** Returns the locations of all the entries with a given hash. Returns
+       *  an empty array if there are no entries with the given hash.
+       */
+        public long[] get(long hash){
+            long stamp = lock.tryOptimisticRead();
+            if (stamp!=0){
+                long[] locations = get(hash, table);
+                if (lock.validate(stamp)) return locations;
+            }
+            stamp = lock.readLock();
+            try{
+                return get(hash, table);
+            }
+            finally{
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public void add(long hash, long location){
+            long stamp = lock.writeLock();
+            try{
+                int capacity = table.length/2;
+                if ((size+1)*4L>capacity*3L) resize(capacity*2);
+                int mask = table.length/2-1;
+                int i = slot(hash, mask);
+                while (table[2*i]!=0) i = (i+1) & mask;
+                table[2*i] = hash;
+                table[2*i+1] = location;
+                size++;
+            }
+            finally{
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        public void replace(long hash, long location, long newLocation){
+            long stamp = lock.writeLock();
+            try{
+                int i = find(hash, location);
+                if (i>=0) table[2*i+1] = newLocation;
+            }
+            finally{
+                lock.unlockWrite(stamp);
+            }
+        }
+
+      /** Removes an entry using backward shift deletion so that no
+       *  tombstones are needed
+       */
+        public void remove(long hash, long location){
+            long stamp = lock.writeLock();
+            try{
+                int i = find(hash, location);
+                if (i<0) return;
+
+                int mask = table.length/2-1;
+                int j = i;
+                while (true){
+                    j = (j+1) & mask;
+                    if (table[2*j]==0) break;
+                    int k = slot(table[2*j], mask);
+                    if ((j>i && (k<=i || k>j)) || (j<i && (k<=i && k>j))){
+                        table[2*i] = table[2*j];
+                        table[2*i+1] = table[2*j+1];
+                        i = j;
+                    }
+                }
+                table[2*i] = 0;
+                table[2*i+1] = 0;
+                size--;
+            }
+            finally{
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        public int size(){
+            long stamp = lock.readLock();
+            try{
+                return size;
+            }
+            finally{
+                lock.unlockRead(stamp);
+            }
+        }
+
+        public void clear(){
+            long stamp = lock.writeLock();
+            try{
+                table = new long[2048];
+                size = 0;
+            }
+            finally{
+                lock.unlockWrite(stamp);
+            }
+        }
+
+      /** Used to collect the locations for a given hash. The table may be
+       *  modified while it is being read (optimistic read) so the number of
+       *  probes is bounded by the size of the table. The result is discarded
+       *  by the caller if the read was not valid.
+       */
+        private static long[] get(long hash, long[] table){
+            int capacity = table.length/2;
+            int mask = capacity-1;
+            int i = slot(hash, mask);
+            long[] locations = EMPTY;
+            int n = 0;
+            for (int probes=0; probes<capacity && table[2*i]!=0; probes++){
+                if (table[2*i]==hash){
+                    if (n==locations.length) locations = Arrays.copyOf(locations, Math.max(2, n*2));
+                    locations[n++] = table[2*i+1];
+                }
+                i = (i+1) & mask;
+            }
+            return n==locations.length ? locations : Arrays.copyOf(locations, n);
+        }
+
+        private int find(long hash, long location){
+            int mask = table.length/2-1;
+            int i = slot(hash, mask);
+            while (table[2*i]!=0){
+                if (table[2*i]==hash && table[2*i+1]==location) return i;
+                i = (i+1) & mask;
+            }
+            return -1;
+        }
+
+        private void resize(int capacity){
+            long[] oldTable = table;
+            long[] newTable = new long[capacity*2];
+            int mask = capacity-1;
+            for (int j=0; j<oldTable.length; j+=2){
+                if (oldTable[j]==0) continue;
+                int i = slot(oldTable[j], mask);
+                while (newTable[2*i]!=0) i = (i+1) & mask;
+                newTable[2*i] = oldTable[j];
+                newTable[2*i+1] = oldTable[j+1];
+            }
+            table = newTable;
+        }
+
+        private static int slot(long hash, int mask){
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+    }
+}
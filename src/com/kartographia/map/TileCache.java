@@ -2,60 +2,220 @@ package com.kartographia.map;
 import javaxt.io.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.awt.image.BufferedImage;
 
 //******************************************************************************
 //**  TileCache
 //******************************************************************************
 /**
- *   Used to add and retrieve image tiles from a cache directory. Ensures
- *   that no two threads create the same image file.
+ *   Used to add and retrieve image tiles from a cache directory or any other
+ *   TileStore. Ensures that no two threads create the same image file.
+ *   Concurrent requests for the same tile share a single render while
+ *   requests for different tiles proceed independently without a global
+ *   lock. Tiles are tracked in memory while they are in use and evicted
+ *   incrementally by a background task. Call close() when the cache is no
+ *   longer needed.
  *
  ******************************************************************************/
 
-public class TileCache {
+public class TileCache implements java.io.Closeable {
 
-    private Directory tileCache;
+    private TileStore store;
     private ConcurrentHashMap<String, Tile> tiles = new ConcurrentHashMap<>();
-    private ConcurrentHashMap<String, Long> requests = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<String, CompletableFuture<Void>> metaTiles = new ConcurrentHashMap<>();
+    private volatile MemoryCache memoryCache;
+    private EmptyTileIndex emptyTiles;
+    private volatile Executor executor;
+    private ExecutorService defaultExecutor;
+    private Semaphore renderQueue = new Semaphore(1000);
+
+
+  //Eviction settings and metrics
+    private int maxEntries = 1000;
+    private long maxAge = 2*60*1000;
+    private int sweepSize = 1000;
+    private ScheduledFuture<?> sweeper;
+    private Iterator<Tile> sweepIterator;
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long sweepDuration;
+    private volatile boolean closed = false;
+
+    private static ScheduledExecutorService scheduler;
 
 
   //**************************************************************************
   //** Constructor
   //**************************************************************************
+  /** Creates a new tile cache that stores image tiles as individual files in
+   *  the given directory.
+   */
     public TileCache(Directory cacheDir){
-        if (!cacheDir.exists()) cacheDir.create();
-        if (!cacheDir.exists()) throw new IllegalArgumentException("Invalid cacheDir");
-        tileCache = cacheDir;
-
-
-
-      //Set up timer task to periodically clean-up the "tiles" hashmap so it
-      //doesn't grow too big
-        int maxSize = 1000;
-        long maxAge = 2*60*1000;
-        Timer timer = new Timer();
-        timer.scheduleAtFixedRate(new TimerTask(){
-            public void run(){
-                if (requests.size()<maxSize) return;
-                long currTime = System.currentTimeMillis();
-                int x = 0;
-                synchronized(requests){
-                    Iterator<String> it = requests.keySet().iterator();
-                    while (it.hasNext()){
-                        String key = it.next();
-                        long lastRequest = requests.get(key);
-                        if (currTime-lastRequest>maxAge){
-                            synchronized(tiles){
-                                tiles.remove(key);
-                            }
-                            it.remove();
-                            x++;
-                        }
-                    }
-                }
-                System.out.println("Removed " + x + " tiles from memory");
-            }
-        }, maxAge, maxAge);
+        this(new DirectoryTileStore(cacheDir));
+    }
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** Creates a new tile cache using a given TileStore (e.g. PackedTileStore)
+   */
+    public TileCache(TileStore store){
+        if (store==null) throw new IllegalArgumentException("Invalid store");
+        this.store = store;
+
+
+
+      //Periodically remove tiles from the "tiles" hashmap so it doesn't grow
+      //too big
+        setSweepInterval(5000);
+    }
+
+
+  //**************************************************************************
+  //** setMemoryCacheSize
+  //**************************************************************************
+  /** Used to enable an in-memory cache for the encoded image tiles. Recently
+   *  requested tiles are kept in memory until the total number of bytes
+   *  exceeds the given limit, at which point tiles that have not been
+   *  requested recently are evicted. Tiles found in the memory cache are returned via the
+   *  Tile.getBytes() and Tile.getByteBuffer() methods without reading the
+   *  file system. The memory cache is disabled by default.
+   *  @param maxBytes Maximum number of bytes to keep in memory. A value of
+   *  zero or less disables the memory cache.
+   */
+    public void setMemoryCacheSize(long maxBytes){
+        if (maxBytes<=0){
+            memoryCache = null;
+        }
+        else{
+            if (memoryCache==null) memoryCache = new MemoryCache(maxBytes);
+            else memoryCache.setMaxSize(maxBytes);
+        }
+    }
+
+
+  //**************************************************************************
+  //** getMemoryCacheSize
+  //**************************************************************************
+  /** Returns the total number of bytes currently stored in the memory cache
+   */
+    public long getMemoryCacheSize(){
+        MemoryCache memoryCache = this.memoryCache;
+        return memoryCache==null ? 0 : memoryCache.getSize();
+    }
+
+
+  //**************************************************************************
+  //** setEmptyTileIndex
+  //**************************************************************************
+  /** Used to set an index of tiles that are known to be empty. When an index
+   *  is set, empty tiles are added to the index instead of the TileStore and
+   *  requests for known empty tiles are returned without reading the
+   *  TileStore or invoking the ImageCreator. The index is closed when the
+   *  cache is closed.
+   */
+    public void setEmptyTileIndex(EmptyTileIndex emptyTiles){
+        this.emptyTiles = emptyTiles;
+    }
+
+
+  //**************************************************************************
+  //** setMaxEntries
+  //**************************************************************************
+  /** Used to set the number of tiles to track in memory before tiles are
+   *  evicted regardless of age (default is 1000). Tiles that are being
+   *  created are never evicted. Note that this does not affect the tiles in
+   *  the TileStore or the memory cache.
+   */
+    public void setMaxEntries(int maxEntries){
+        if (maxEntries<0) return;
+        this.maxEntries = maxEntries;
+    }
+
+
+  //**************************************************************************
+  //** setMaxAge
+  //**************************************************************************
+  /** Used to set the amount of time, in milliseconds, to track a tile in
+   *  memory after it was last requested (default is 2 minutes).
+   */
+    public void setMaxAge(long maxAge){
+        if (maxAge<0) return;
+        this.maxAge = maxAge;
+    }
+
+
+  //**************************************************************************
+  //** setSweepSize
+  //**************************************************************************
+  /** Used to set the maximum number of tiles to inspect each time the
+   *  eviction task runs (default is 1000). The task resumes where it left
+   *  off on the next run so large caches are swept incrementally.
+   */
+    public void setSweepSize(int sweepSize){
+        if (sweepSize<1) return;
+        this.sweepSize = sweepSize;
+    }
+
+
+  //**************************************************************************
+  //** setSweepInterval
+  //**************************************************************************
+  /** Used to set how often, in milliseconds, the eviction task runs (default
+   *  is 5 seconds). The task runs on a scheduler thread that is shared by
+   *  all TileCache instances.
+   */
+    public synchronized void setSweepInterval(long interval){
+        if (interval<1 || closed) return;
+        if (sweeper!=null) sweeper.cancel(false);
+        sweeper = getScheduler().scheduleWithFixedDelay(
+            this::sweep, interval, interval, TimeUnit.MILLISECONDS
+        );
+    }
+
+
+  //**************************************************************************
+  //** getEntryCount
+  //**************************************************************************
+  /** Returns the number of tiles currently tracked in memory
+   */
+    public int getEntryCount(){
+        return tiles.size();
+    }
+
+
+  //**************************************************************************
+  //** getEvictionCount
+  //**************************************************************************
+  /** Returns the total number of tiles evicted from memory
+   */
+    public long getEvictionCount(){
+        return evictions.get();
+    }
+
+
+  //**************************************************************************
+  //** getSweepDuration
+  //**************************************************************************
+  /** Returns the time, in microseconds, it took to run the last sweep
+   */
+    public long getSweepDuration(){
+        return sweepDuration;
     }
 
 
@@ -77,90 +237,482 @@ public class TileCache {
    *  that the tile request was received but the corresponding tile has no
    *  data.
    *  @param key Unique key that is used to find a tile in the cache. The
-   *  key is used to construct a file path. Typical keys follow the pattern
-   *  "{layer}/{z}/{x}/{y}". The getRelativePath() method can be used to
-   *  construct more elaborate paths using tile x,y,z coordinates.
+   *  key is used to construct a file path when the tiles are stored in a
+   *  directory. Typical keys follow the pattern "{layer}/{z}/{x}/{y}". The
+   *  getRelativePath() method can be used to construct more elaborate paths
+   *  using tile x,y,z coordinates.
    *  @param imageCreator ImageCreator implementation that is used to create
    *  image tiles.
    *  @param saveEmptyTiles If true, creates empty (0 byte) files for empty
-   *  images (not recommended).
+   *  images (not recommended). Ignored if an EmptyTileIndex is set.
    */
     public Tile getOrCreateTile(String key, ImageCreator imageCreator, boolean saveEmptyTiles){
 
-        synchronized(requests){
-            requests.put(key, System.currentTimeMillis());
-        }
+        Tile tile = getTile(key, saveEmptyTiles);
+        tile.lastAccess = System.currentTimeMillis();
 
-        Tile tile;
-        synchronized(tiles){
-            tile = tiles.get(key);
-            if (tile==null){
-                tile = new Tile(key, tileCache, saveEmptyTiles);
-                tiles.put(key, tile);
-            }
+
+      //Create the tile if this is the first request for it. Other threads
+      //requesting the same tile will wait for the render to complete.
+        if (!tile.ready.isDone() && tile.rendering.compareAndSet(false, true)){
+            render(tile, imageCreator);
         }
 
-        synchronized(tile.file){
-            if (tile.file.isEmpty()){
+        return await(tile);
+    }
 
-                boolean createTile = false;
-                synchronized(tile.status){
-                    if (tile.status.isEmpty()){
-                        tile.status.add(0);
-                        tile.status.notify();
-                        createTile = true;
-                    }
-                    else{
-                        while (!tile.status.isEmpty()){
-                            try{
-                                tile.status.wait();
-                            }
-                            catch(Exception e){
-                                throw new RuntimeException(e);
-                            }
+
+  //**************************************************************************
+  //** getOrCreateTileAsync
+  //**************************************************************************
+    public CompletableFuture<Tile> getOrCreateTileAsync(String key, ImageCreator imageCreator){
+        return getOrCreateTileAsync(key, imageCreator, true);
+    }
+
+
+  //**************************************************************************
+  //** getOrCreateTileAsync
+  //**************************************************************************
+  /** Returns a tile from the tile cache without blocking the calling thread.
+   *  If a tile does not exist, the ImageCreator is invoked using the render
+   *  executor (see setExecutor). If the number of pending renders exceeds
+   *  the limit set via setMaxPendingRenders(), the returned future completes
+   *  exceptionally with a RejectedExecutionException. See getOrCreateTile()
+   *  for a description of the parameters.
+   */
+    public CompletableFuture<Tile> getOrCreateTileAsync(String key, ImageCreator imageCreator, boolean saveEmptyTiles){
+
+        Tile tile = getTile(key, saveEmptyTiles);
+        tile.lastAccess = System.currentTimeMillis();
+
+        if (!tile.ready.isDone() && tile.rendering.compareAndSet(false, true)){
+            Semaphore renderQueue = this.renderQueue;
+            if (renderQueue.tryAcquire()){
+                try{
+                    getExecutor().execute(() -> {
+                        try{
+                            render(tile, imageCreator);
                         }
-                    }
+                        catch(RuntimeException | Error e){
+                            //error is returned via the tile future
+                        }
+                        finally{
+                            renderQueue.release();
+                        }
+                    });
+                }
+                catch(RejectedExecutionException e){
+                    renderQueue.release();
+                    reject(tile, e);
                 }
+            }
+            else{
+                reject(tile, new RejectedExecutionException("Render queue is full"));
+            }
+        }
 
+        return tile.ready.thenApply(t -> t);
+    }
 
-                if (createTile){
-                    Image img = imageCreator.create();
-                    tile.update(img);
+
+  //**************************************************************************
+  //** getOrCreateTile
+  //**************************************************************************
+    public Tile getOrCreateTile(String layer, int x, int y, int z, int tileSize,
+        int metaSize, MetaTileRenderer renderer){
+        return getOrCreateTile(layer, x, y, z, tileSize, metaSize, renderer, true);
+    }
+
+
+  //**************************************************************************
+  //** getOrCreateTile
+  //**************************************************************************
+  /** Returns a tile from the tile cache. If a tile does not exist, renders a
+   *  "metatile" covering an n x n block of tiles that includes the requested
+   *  tile. The metatile is rendered once and sliced into individual tiles
+   *  which are added to the cache. This reduces the per-tile setup cost
+   *  (e.g. geometry transforms and fills that span multiple tiles) and
+   *  ensures labels are not clipped at tile boundaries. Concurrent requests
+   *  for tiles in the same block share a single render. Example:
+   <pre>
+    tileCache.getOrCreateTile("roads", x, y, z, 256, 8, (mapTile) -> {
+        for (Geometry geom : roads) mapTile.addLine(...);
+    });
+   </pre>
+   *  @param layer Prefix used to generate tile keys (e.g. "roads"). Keys
+   *  are generated using the layer and the getRelativePath() method.
+   *  @param tileSize Width/height of an individual tile, in pixels
+   *  @param metaSize Number of tiles along each side of the block (e.g. 8).
+   *  Must be a power of 2.
+   *  @param renderer Used to render features onto the metatile
+   *  @param saveEmptyTiles If true, creates empty (0 byte) files for empty
+   *  tiles in the block. Ignored if an EmptyTileIndex is set, in which case
+   *  empty tiles are added to the index instead. Consider using an
+   *  EmptyTileIndex or setting this to false for sparse layers since most
+   *  tiles in a block may be empty.
+   */
+    public Tile getOrCreateTile(String layer, int x, int y, int z, int tileSize,
+        int metaSize, MetaTileRenderer renderer, boolean saveEmptyTiles){
+
+        if (metaSize<1 || (metaSize & (metaSize-1))!=0)
+            throw new IllegalArgumentException("Invalid metaSize");
+        if (layer==null) layer = "";
+
+
+      //Get upper left tile in the block
+        int n = z<31 ? Math.min(metaSize, 1 << z) : metaSize;
+        int x0 = x - (x % n);
+        int y0 = y - (y % n);
+        String metaKey = layer + "/" + z + "/" + x0 + "/" + y0 + "/" + n;
+
+
+        String key = layer + getRelativePath(x, y, z);
+        Tile tile = getTile(key, saveEmptyTiles);
+        tile.lastAccess = System.currentTimeMillis();
+
+        while (!tile.ready.isDone() && !tile.rendering.get()){
+
+          //Render the block if no other thread is rendering it. Otherwise,
+          //wait for the other thread to finish and check the tile again.
+            CompletableFuture<Void> f = new CompletableFuture<>();
+            CompletableFuture<Void> prev = metaTiles.putIfAbsent(metaKey, f);
+            if (prev==null){
+                try{
+                    render(layer, x0, y0, z, tileSize, n, renderer, saveEmptyTiles);
+                }
+                finally{
+                    metaTiles.remove(metaKey, f);
+                    f.complete(null);
+                }
+                break;
+            }
+            else{
+                prev.join();
+                if (!tile.ready.isDone() && !tile.rendering.get()){
+                    tile = getTile(key, saveEmptyTiles);
                 }
             }
         }
+
+        return await(tile);
+    }
+
+
+  //**************************************************************************
+  //** MetaTileRenderer
+  //**************************************************************************
+  /** Used to render features onto a metatile
+   */
+    public static interface MetaTileRenderer {
+        public void render(MapTile mapTile);
+    }
+
+
+  //**************************************************************************
+  //** setExecutor
+  //**************************************************************************
+  /** Used to set the executor used to render tiles requested via the
+   *  getOrCreateTileAsync() method. By default, tiles are rendered using
+   *  virtual threads if the JVM supports them. Otherwise, tiles are rendered
+   *  using a fixed thread pool with one thread per processor.
+   */
+    public void setExecutor(Executor executor){
+        if (executor==null) return;
+        this.executor = executor;
+    }
+
+
+  //**************************************************************************
+  //** setMaxPendingRenders
+  //**************************************************************************
+  /** Used to set the maximum number of asynchronous renders that can be
+   *  queued or running at any given time (default is 1000). Requests that
+   *  exceed this limit are rejected.
+   */
+    public void setMaxPendingRenders(int maxPendingRenders){
+        if (maxPendingRenders<1) return;
+        renderQueue = new Semaphore(maxPendingRenders);
+    }
+
+
+  //**************************************************************************
+  //** getTile
+  //**************************************************************************
+  /** Returns a tile from the "tiles" map. Creates a new tile as needed.
+   */
+    private Tile getTile(String key, boolean saveEmptyTiles){
+        Tile tile = tiles.computeIfAbsent(key, k -> new Tile(k, store, saveEmptyTiles));
+        tile.memoryCache = memoryCache;
+        tile.emptyTiles = emptyTiles;
         return tile;
     }
 
 
+  //**************************************************************************
+  //** render
+  //**************************************************************************
+  /** Used to create an image for a given tile if the tile doesn't exist on
+   *  disk. The caller must first claim the tile via the "rendering" flag.
+   */
+    private void render(Tile tile, ImageCreator imageCreator){
+        try{
+            EmptyTileIndex emptyTiles = tile.emptyTiles;
+            if (emptyTiles!=null && emptyTiles.contains(tile.key)){
+                //tile is empty, nothing to do
+            }
+            else if (!store.exists(tile.key)){
+                Image img = imageCreator.create();
+                tile.update(img);
+            }
+            tile.ready.complete(tile);
+        }
+        catch(RuntimeException | Error e){
+            reject(tile, e);
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** render
+  //**************************************************************************
+  /** Used to render a metatile and update all the tiles in the block that
+   *  are not already in the cache or being created by another thread. Tiles
+   *  are claimed individually via the "rendering" flag so no locks are held
+   *  while rendering.
+   */
+    private void render(String layer, int x0, int y0, int z, int tileSize, int n,
+        MetaTileRenderer renderer, boolean saveEmptyTiles){
+
+
+      //Claim tiles in the block
+        ArrayList<Tile> claimed = new ArrayList<>();
+        ArrayList<int[]> offsets = new ArrayList<>();
+        boolean render = false;
+        for (int row=0; row<n; row++){
+            for (int col=0; col<n; col++){
+                String key = layer + getRelativePath(x0+col, y0+row, z);
+                Tile tile = getTile(key, saveEmptyTiles);
+                if (tile.ready.isDone() || !tile.rendering.compareAndSet(false, true)) continue;
+
+                claimed.add(tile);
+                EmptyTileIndex emptyTiles = tile.emptyTiles;
+                if ((emptyTiles!=null && emptyTiles.contains(key)) || store.exists(key)){
+                    offsets.add(null); //tile already exists
+                }
+                else{
+                    offsets.add(new int[]{col*tileSize, row*tileSize});
+                    render = true;
+                }
+            }
+        }
+
+
+      //Render the metatile and slice it into tiles
+        try{
+            if (render){
+                MapTile mapTile = new MapTile(x0, y0, z, tileSize, n);
+                renderer.render(mapTile);
+                BufferedImage bi = mapTile.getImage().getBufferedImage();
+                for (int i=0; i<claimed.size(); i++){
+                    int[] offset = offsets.get(i);
+                    if (offset==null) continue;
+                    BufferedImage subimage = bi.getSubimage(offset[0], offset[1], tileSize, tileSize);
+                    claimed.get(i).update(new Image(subimage));
+                }
+            }
+            for (Tile tile : claimed){
+                tile.ready.complete(tile);
+            }
+        }
+        catch(RuntimeException | Error e){
+            for (Tile tile : claimed){
+                if (!tile.ready.isDone()) reject(tile, e);
+            }
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** reject
+  //**************************************************************************
+  /** Used to notify threads waiting on a tile that the tile could not be
+   *  created. The tile is removed from the "tiles" map so that subsequent
+   *  requests can try again.
+   */
+    private void reject(Tile tile, Throwable t){
+        tile.ready.completeExceptionally(t);
+        tiles.remove(tile.key, tile);
+    }
+
+
+  //**************************************************************************
+  //** getExecutor
+  //**************************************************************************
+  /** Returns the executor used to render tiles asynchronously. The default
+   *  executor is created on first use. No locks are taken once the executor
+   *  has been created.
+   */
+    private Executor getExecutor(){
+        Executor executor = this.executor;
+        if (executor!=null) return executor;
+
+        synchronized(this){
+            if (this.executor==null){
+                ExecutorService executorService;
+                try{
+                    executorService = (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                }
+                catch(Exception e){
+                    executorService = Executors.newFixedThreadPool(
+                        Runtime.getRuntime().availableProcessors(), r -> {
+                        Thread thread = new Thread(r, "TileCache-render");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                }
+                defaultExecutor = executorService;
+                this.executor = executorService;
+            }
+            return this.executor;
+        }
+    }
+
+
+  //**************************************************************************
+  //** getScheduler
+  //**************************************************************************
+  /** Returns the scheduler used to run the eviction tasks
+   */
+    private static synchronized ScheduledExecutorService getScheduler(){
+        if (scheduler==null){
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "TileCache-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return scheduler;
+    }
+
+
+  //**************************************************************************
+  //** sweep
+  //**************************************************************************
+  /** Used to remove tiles from the "tiles" hashmap that haven't been
+   *  requested recently or exceed the maxEntries. Inspects up to sweepSize
+   *  entries per call and resumes from the same position on the next call.
+   *  When there are more than maxEntries tiles, tiles that have not been
+   *  requested since the last time they were inspected are evicted (second
+   *  chance) so that frequently requested tiles are kept. Tiles that are
+   *  being created are skipped. Requests are never blocked.
+   */
+    private void sweep(){
+        long startTime = System.nanoTime();
+        try{
+            long currTime = System.currentTimeMillis();
+            Iterator<Tile> it = sweepIterator;
+            if (it==null || !it.hasNext()) it = tiles.values().iterator();
+
+            int n = 0;
+            while (n<sweepSize && it.hasNext()){
+                n++;
+                Tile tile = it.next();
+                if (!tile.ready.isDone()) continue;
+
+                long lastAccess = tile.lastAccess;
+                long lastSweep = tile.lastSweep;
+                tile.lastSweep = currTime;
+
+                if (currTime-lastAccess>maxAge ||
+                    (tiles.size()>maxEntries && lastAccess<lastSweep)){
+                    if (tiles.remove(tile.key, tile)) evictions.incrementAndGet();
+                }
+            }
+            sweepIterator = it;
+        }
+        catch(Throwable t){
+            //don't let exceptions cancel the task
+        }
+        sweepDuration = (System.nanoTime()-startTime)/1000;
+    }
+
+
+  //**************************************************************************
+  //** close
+  //**************************************************************************
+  /** Used to stop the eviction task, shutdown the default render executor,
+   *  and close the TileStore
+   */
+    public void close() throws IOException {
+        synchronized(this){
+            if (closed) return;
+            closed = true;
+            if (sweeper!=null) sweeper.cancel(false);
+            if (defaultExecutor!=null) defaultExecutor.shutdown();
+        }
+        tiles.clear();
+        if (emptyTiles!=null) emptyTiles.close();
+        store.close();
+    }
+
+
   //**************************************************************************
   //** removeTile
   //**************************************************************************
-  /** Used to delete a tile from the cache
+  /** Used to delete a tile from the cache. If the tile is being created, waits
+   *  for the tile to be created before deleting it.
    */
     public void removeTile(String key){
-        synchronized(tiles){
+        while (true){
             Tile tile = tiles.get(key);
             if (tile!=null){
+                try{
+                    await(tile);
+                }
+                catch(Exception e){
+                    //render failed, nothing to wait for
+                }
+            }
 
-                synchronized(tile.file){
-                    while (tile.file.isEmpty()){
-                        try{
-                            tile.file.wait();
-                        }
-                        catch(Exception e){
-                            throw new RuntimeException(e);
-                        }
-                    }
+            AtomicBoolean deleted = new AtomicBoolean(false);
+            tiles.compute(key, (k, t) -> {
+                if (t!=null && !t.ready.isDone()) return t; //new render started
+                try{
+                    store.delete(key);
+                    if (emptyTiles!=null) emptyTiles.remove(key);
+                }
+                catch(IOException e){
+                    throw new RuntimeException(e);
                 }
+                deleted.set(true);
+                return null;
+            });
+            if (deleted.get()) break;
+        }
 
-                tile.getFile().delete();
-                tiles.remove(key);
-            }
-            else{
-                tile = new Tile(key, tileCache, false);
-                tile.getFile().delete();
-            }
+        MemoryCache memoryCache = this.memoryCache;
+        if (memoryCache!=null) memoryCache.remove(key);
+    }
+
+
+  //**************************************************************************
+  //** await
+  //**************************************************************************
+  /** Waits for a tile to be created and returns the tile. Rethrows any
+   *  exceptions encountered while creating the tile.
+   */
+    private static Tile await(Tile tile){
+        try{
+            return tile.ready.join();
+        }
+        catch(CompletionException e){
+            Throwable t = e.getCause();
+            if (t instanceof RuntimeException) throw (RuntimeException) t;
+            if (t instanceof Error) throw (Error) t;
+            throw e;
         }
     }
 
@@ -181,79 +733,247 @@ public class TileCache {
     public static class Tile {
 
         private String key;
-        private List<File> file = new LinkedList<>();
-        private List status = new LinkedList<>();
-        private Directory tileCache;
+        private TileStore store;
         private boolean saveEmptyTiles;
+        private volatile MemoryCache memoryCache;
+        private EmptyTileIndex emptyTiles;
+        private final AtomicBoolean rendering = new AtomicBoolean(false);
+        private final CompletableFuture<Tile> ready = new CompletableFuture<>();
+        private volatile long lastAccess = System.currentTimeMillis();
+        private volatile long lastSweep = 0; //last time the tile was inspected by the sweeper
 
         public Tile(String key, Directory tileCache, boolean saveEmptyTiles){
+            this(key, new DirectoryTileStore(tileCache), saveEmptyTiles);
+        }
+
+        public Tile(String key, TileStore store, boolean saveEmptyTiles){
             this.key = key;
-            this.tileCache = tileCache;
+            this.store = store;
             this.saveEmptyTiles = saveEmptyTiles;
-            File f = getFile();
-            if (f.exists()){
-                synchronized(file){
-                    file.add(f);
-                    file.notify();
-                }
-            }
         }
 
         private void update(javaxt.io.Image img){
-            File f = getFile();
-            if (f.exists()) f.delete();
-            Directory dir = f.getDirectory();
-            dir.create();
-
             if (isEmpty(img)) img = null;
 
-
-            File tmp = new File(dir+"_temp", f.getName());
+            EmptyTileIndex emptyTiles = this.emptyTiles;
+            byte[] bytes = null;
             if (img==null){
-                if (saveEmptyTiles){
-                    tmp.create();
-                }
+                if (saveEmptyTiles && emptyTiles==null) bytes = new byte[0];
             }
             else{
-                img.saveAs(tmp.toFile());
+                bytes = img.getByteArray("png");
             }
 
-            if (tmp.exists()){
-                tmp.rename(tmp.getName()+".tmp");
-                tmp.moveTo(dir);
-                tmp.rename(f.getName());
-            }
+            try{
+                if (bytes==null) store.delete(key);
+                else store.write(key, bytes);
 
-            file.add(f);
-            file.notifyAll();
+                if (emptyTiles!=null){
+                    if (img==null) emptyTiles.add(key);
+                    else emptyTiles.remove(key);
+                }
+            }
+            catch(IOException e){
+                throw new RuntimeException(e);
+            }
 
-            synchronized(status){
-                status.clear();
+            MemoryCache memoryCache = this.memoryCache;
+            if (bytes!=null && memoryCache!=null){
+                memoryCache.put(key, bytes);
             }
         }
 
         private boolean isEmpty(Image img){
-            if (img!=null){
-                for (int i=0; i<img.getWidth(); i++){
-                    for (int j=0; j<img.getHeight(); j++){
-                        java.awt.Color color = img.getColor(i, j);
-                        int r = color.getRed();
-                        int g = color.getGreen();
-                        int b = color.getBlue();
-                        int a = color.getAlpha();
-                        if (a>0) return false;
+            if (img==null) return true;
+            return MapTile.isEmpty(img.getBufferedImage());
+        }
+
+      /** Returns the file used to store the tile. Returns null if the tile
+       *  is not stored as an individual file (e.g. PackedTileStore).
+       */
+        public File getFile(){
+            if (store instanceof DirectoryTileStore){
+                return ((DirectoryTileStore) store).getFile(key);
+            }
+            return null;
+        }
+
+
+      /** Returns a copy of the encoded image for this tile. The image is
+       *  returned from the memory cache if available. Otherwise, the image
+       *  is read from the TileStore and added to the memory cache. Returns an
+       *  empty array if the tile is empty and null if the tile is not in the
+       *  store. Use getByteBuffer() or transferTo() to access the image
+       *  without a copy.
+       */
+        public byte[] getBytes(){
+            byte[] bytes = getCachedBytes();
+            return bytes==null ? null : bytes.clone();
+        }
+
+
+      /** Returns a read-only view of the encoded image for this tile. If the
+       *  memory cache is disabled, the buffer is returned directly from the
+       *  TileStore (e.g. a memory-mapped buffer from a PackedTileStore).
+       *  Returns null if the tile is not in the store.
+       */
+        public ByteBuffer getByteBuffer(){
+            if (memoryCache!=null){
+                byte[] bytes = getCachedBytes();
+                if (bytes==null) return null;
+                return ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+            }
+            ByteBuffer buffer = read();
+            if (buffer==null) return isKnownEmpty() ? ByteBuffer.allocate(0) : null;
+            return buffer.asReadOnlyBuffer();
+        }
+
+
+      /** Returns the encoded image from the memory cache or the TileStore.
+       *  The array may be shared with other threads and must not be modified
+       *  or returned to callers outside of this class.
+       */
+        private byte[] getCachedBytes(){
+            MemoryCache memoryCache = this.memoryCache;
+            if (memoryCache!=null){
+                byte[] bytes = memoryCache.get(key);
+                if (bytes!=null) return bytes;
+            }
+
+            ByteBuffer buffer = read();
+            if (buffer==null) return isKnownEmpty() ? new byte[0] : null;
+            byte[] bytes;
+            if (buffer.hasArray() && buffer.arrayOffset()==0 && !buffer.isReadOnly() &&
+                buffer.remaining()==buffer.array().length){
+                bytes = buffer.array(); //new array from the store (e.g. DirectoryTileStore)
+            }
+            else{
+                bytes = new byte[buffer.remaining()];
+                buffer.duplicate().get(bytes);
+            }
+
+            if (memoryCache!=null) memoryCache.put(key, bytes);
+            return bytes;
+        }
+
+
+      /** Used to write the encoded image for this tile to a channel (e.g. an
+       *  output stream wrapped with Channels.newChannel()). Tiles found in the
+       *  memory cache are written from memory. Otherwise, the tile is copied
+       *  from the TileStore to the channel without intermediate heap copies
+       *  (e.g. using FileChannel.transferTo). Returns the number of bytes
+       *  written or -1 if the tile is not in the store. Fewer bytes may be
+       *  written if the target is a non-blocking channel that is full.
+       */
+        public long transferTo(WritableByteChannel target) throws IOException {
+            MemoryCache memoryCache = this.memoryCache;
+            if (memoryCache!=null){
+                byte[] bytes = memoryCache.get(key);
+                if (bytes!=null){
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                    while (buffer.hasRemaining()){
+                        if (target.write(buffer)<=0) break;
                     }
+                    return buffer.position();
                 }
             }
-            return true;
+            long n = store.transferTo(key, target);
+            if (n<0 && isKnownEmpty()) return 0;
+            return n;
         }
 
-        public File getFile(){
-            if (file.isEmpty()){
-                return new File(tileCache + key + ".png");
+
+      /** Returns true if the tile is in the EmptyTileIndex
+       */
+        private boolean isKnownEmpty(){
+            EmptyTileIndex emptyTiles = this.emptyTiles;
+            return emptyTiles!=null && emptyTiles.contains(key);
+        }
+
+
+        private ByteBuffer read(){
+            try{
+                return store.read(key);
             }
-            else{
-                return file.get(0);
+            catch(IOException e){
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+
+  //**************************************************************************
+  //** MemoryCache
+  //**************************************************************************
+  /** Used to store encoded image tiles in memory. Entries are evicted using
+   *  the CLOCK algorithm whenever the total number of bytes exceeds the
+   *  maxSize: entries that were requested since the last pass are given a
+   *  second chance, others are removed. Reads do not take any locks. The
+   *  cached arrays are shared and must not be modified.
+   */
+    private static class MemoryCache {
+
+        private final ConcurrentHashMap<String, CacheEntry> map = new ConcurrentHashMap<>(256);
+        private final AtomicLong size = new AtomicLong();
+        private volatile long maxSize;
+        private Iterator<Map.Entry<String, CacheEntry>> clock; //guarded by this
+
+        public MemoryCache(long maxSize){
+            this.maxSize = maxSize;
+        }
+
+        public byte[] get(String key){
+            CacheEntry entry = map.get(key);
+            if (entry==null) return null;
+            if (!entry.accessed) entry.accessed = true;
+            return entry.bytes;
+        }
+
+        public void put(String key, byte[] bytes){
+            if (bytes.length>maxSize) return;
+            CacheEntry prev = map.put(key, new CacheEntry(bytes));
+            if (prev!=null) size.addAndGet(-prev.bytes.length);
+            if (size.addAndGet(bytes.length)>maxSize) trim();
+        }
+
+        public void remove(String key){
+            CacheEntry prev = map.remove(key);
+            if (prev!=null) size.addAndGet(-prev.bytes.length);
+        }
+
+        public void setMaxSize(long maxSize){
+            this.maxSize = maxSize;
+            trim();
+        }
+
+        public long getSize(){
+            return size.get();
+        }
+
+        private synchronized void trim(){
+            long limit = map.size()*2L+1; //at most 2 passes
+            for (long i=0; i<limit && size.get()>maxSize; i++){
+                if (clock==null || !clock.hasNext()){
+                    if (map.isEmpty()) break;
+                    clock = map.entrySet().iterator();
+                    if (!clock.hasNext()) break;
+                }
+                Map.Entry<String, CacheEntry> e = clock.next();
+                CacheEntry entry = e.getValue();
+                if (entry.accessed){
+                    entry.accessed = false;
+                }
+                else{
+                    if (map.remove(e.getKey(), entry)) size.addAndGet(-entry.bytes.length);
+                }
+            }
+        }
+
+        private static class CacheEntry {
+            private final byte[] bytes;
+            private volatile boolean accessed = true;
+            public CacheEntry(byte[] bytes){
+                this.bytes = bytes;
             }
         }
     }
@@ -0,0 +1,405 @@
+package com.kartographia.map;
+import org.locationtech.jts.geom.Geometry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//******************************************************************************
+//**  TileSeeder
+//******************************************************************************
+/**
+ *   Used to pre-render tiles into a TileCache for a given area and range of
+ *   zoom levels (e.g. to warm a cache after a data reload). Example:
+ <pre>
+    TileSeeder seeder = new TileSeeder(tileCache, "roads");
+    seeder.setCheckpoint(new javaxt.io.File("/temp/roads.checkpoint"));
+    seeder.seed(geom, 0, 14, (x, y, z) -> {
+        return () -> {
+            MapTile mapTile = new MapTile(x, y, z, 256);
+            //render features...
+            return mapTile.getImage();
+        };
+    });
+ </pre>
+ *   Tiles are rendered in parallel using one thread per processor. Keys are
+ *   generated using the layer name and TileCache.getRelativePath(). If a
+ *   checkpoint file is set, progress is saved periodically and seeding
+ *   resumes from the checkpoint the next time seed() is called with the
+ *   same layer, geometry, and zoom range. The checkpoint never advances
+ *   past a tile that failed to render so failed tiles are retried when
+ *   seeding is resumed.
+ *
+ ******************************************************************************/
+
+public class TileSeeder {
+
+    private TileCache tileCache;
+    private String layer;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private Path checkpoint;
+    private ProgressListener listener;
+
+    private volatile int zoom;
+    private volatile long total;
+    private AtomicLong completed = new AtomicLong();
+    private AtomicLong rendered = new AtomicLong();
+    private AtomicLong failed = new AtomicLong();
+    private volatile long startTime;
+    private int failedZoom; //first tile that failed to render
+    private long failedIndex;
+    private String job; //used to identify the checkpoint
+
+
+  //**************************************************************************
+  //** Constructor
+  //**************************************************************************
+  /** @param tileCache TileCache used to store the tiles
+   *  @param layer Prefix used to generate tile keys (e.g. "roads")
+   */
+    public TileSeeder(TileCache tileCache, String layer){
+        if (tileCache==null) throw new IllegalArgumentException("Invalid tileCache");
+        this.tileCache = tileCache;
+        this.layer = layer==null ? "" : layer;
+    }
+
+
+  //**************************************************************************
+  //** setThreads
+  //**************************************************************************
+  /** Used to set the number of threads used to render tiles. Defaults to the
+   *  number of processors.
+   */
+    public void setThreads(int numThreads){
+        if (numThreads<1) return;
+        this.numThreads = numThreads;
+    }
+
+
+  //**************************************************************************
+  //** setCheckpoint
+  //**************************************************************************
+  /** Used to set a file used to save progress so that seeding can be resumed
+   *  after an interruption. The file is deleted when seeding is complete.
+   */
+    public void setCheckpoint(javaxt.io.File file){
+        checkpoint = file==null ? null : file.toFile().toPath();
+    }
+
+
+  //**************************************************************************
+  //** setProgressListener
+  //**************************************************************************
+  /** Used to set a listener that is notified of progress while seeding. The
+   *  listener is called at most once per second and when a zoom level is
+   *  complete.
+   */
+    public void setProgressListener(ProgressListener listener){
+        this.listener = listener;
+    }
+
+
+  //**************************************************************************
+  //** ProgressListener
+  //**************************************************************************
+    public static interface ProgressListener {
+        public void onProgress(int zoom, long completed, long total, double tilesPerSecond);
+    }
+
+
+  //**************************************************************************
+  //** ImageCreatorFactory
+  //**************************************************************************
+  /** Used to create an ImageCreator for a given tile
+   */
+    public static interface ImageCreatorFactory {
+        public TileCache.ImageCreator getImageCreator(int x, int y, int z);
+    }
+
+
+  //**************************************************************************
+  //** seed
+  //**************************************************************************
+  /** Used to render all the tiles that intersect a given geometry. Tiles
+   *  that are already in the cache are skipped. Blocks until all the tiles
+   *  have been rendered. The checkpoint file is deleted when all the tiles
+   *  were rendered successfully. Otherwise, the checkpoint is kept so that
+   *  the failed tiles are retried the next time seed() is called.
+   *  @param geom Geometry in lat/lon coordinates (EPSG:4326)
+   *  @param minZoom Min zoom level (inclusive)
+   *  @param maxZoom Max zoom level (inclusive)
+   *  @param factory Used to create an ImageCreator for each tile
+   *  @throws InterruptedException If the calling thread is interrupted. The
+   *  checkpoint is saved before the exception is thrown.
+   */
+    public void seed(Geometry geom, int minZoom, int maxZoom, ImageCreatorFactory factory)
+        throws InterruptedException, IOException {
+
+        if (minZoom<0 || maxZoom<minZoom) throw new IllegalArgumentException("Invalid zoom range");
+
+
+      //Get checkpoint. Ignore the checkpoint if it was created for a
+      //different job (layer, geometry, or zoom range).
+        job = getJob(geom, minZoom, maxZoom);
+        int startZoom = minZoom;
+        long startIndex = 0;
+        long[] arr = readCheckpoint();
+        if (arr!=null && arr[0]>=minZoom && arr[0]<=maxZoom){
+            startZoom = (int) arr[0];
+            startIndex = arr[1];
+        }
+
+
+      //Render tiles
+        int numThreads = this.numThreads;
+        completed.set(0);
+        rendered.set(0);
+        failed.set(0);
+        synchronized(this){
+            failedZoom = -1;
+            failedIndex = 0;
+        }
+        startTime = System.currentTimeMillis();
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try{
+            for (int z=startZoom; z<=maxZoom; z++){
+                ArrayList<int[]> tiles = MapTile.getIntersectingTiles(geom, z);
+                long offset = z==startZoom ? Math.min(startIndex, tiles.size()) : 0;
+                zoom = z;
+                total = tiles.size();
+                completed.set(offset);
+                seed(tiles, z, (int) offset, factory, executor, numThreads*2);
+                writeCheckpoint(z+1, 0);
+                notifyListener();
+            }
+        }
+        finally{
+            executor.shutdownNow();
+        }
+
+        if (checkpoint!=null && failed.get()==0) Files.deleteIfExists(checkpoint);
+    }
+
+
+  //**************************************************************************
+  //** seed
+  //**************************************************************************
+  /** Used to render tiles for a given zoom level
+   */
+    private void seed(ArrayList<int[]> tiles, int z, int offset, ImageCreatorFactory factory,
+        ExecutorService executor, int numPermits) throws InterruptedException, IOException {
+
+        int n = tiles.size()-offset;
+        BitSet done = new BitSet(n);
+        int[] watermark = new int[]{0}; //number of contiguous tiles rendered
+        Semaphore permits = new Semaphore(numPermits);
+        long lastUpdate = System.currentTimeMillis();
+
+        try{
+            for (int i=0; i<n; i++){
+
+              //Wait for a render thread to become available
+                while (!permits.tryAcquire(1, TimeUnit.SECONDS)){
+                    lastUpdate = update(z, offset, watermark, done, lastUpdate);
+                }
+                lastUpdate = update(z, offset, watermark, done, lastUpdate);
+
+
+              //Render tile
+                final int idx = i;
+                final int[] tile = tiles.get(offset+i);
+                executor.execute(() -> {
+                    try{
+                        int x = tile[0];
+                        int y = tile[1];
+                        String key = layer + TileCache.getRelativePath(x, y, z);
+                        tileCache.getOrCreateTile(key, factory.getImageCreator(x, y, z));
+                        synchronized(done){
+                            done.set(idx);
+                        }
+                        rendered.incrementAndGet();
+                    }
+                    catch(Exception e){
+                        failed.incrementAndGet();
+                        setFailed(z, offset+idx);
+                    }
+                    finally{
+                        completed.incrementAndGet();
+                        permits.release();
+                    }
+                });
+            }
+
+
+          //Wait for remaining tiles
+            permits.acquire(numPermits);
+            permits.release(numPermits);
+        }
+        catch(InterruptedException e){
+            update(z, offset, watermark, done, 0);
+            throw e;
+        }
+    }
+
+
+  //**************************************************************************
+  //** update
+  //**************************************************************************
+  /** Used to save a checkpoint and notify the listener once per second.
+   *  Returns the time of the last update.
+   */
+    private long update(int z, int offset, int[] watermark, BitSet done, long lastUpdate)
+        throws IOException {
+        long currTime = System.currentTimeMillis();
+        if (currTime-lastUpdate<1000) return lastUpdate;
+
+        synchronized(done){
+            watermark[0] = done.nextClearBit(watermark[0]);
+        }
+        writeCheckpoint(z, offset+watermark[0]);
+        notifyListener();
+        return currTime;
+    }
+
+
+  //**************************************************************************
+  //** setFailed
+  //**************************************************************************
+  /** Used to record the first tile that failed to render. The checkpoint
+   *  will not advance past this tile.
+   */
+    private synchronized void setFailed(int z, long index){
+        if (failedZoom<0 || z<failedZoom || (z==failedZoom && index<failedIndex)){
+            failedZoom = z;
+            failedIndex = index;
+        }
+    }
+
+
+  //**************************************************************************
+  //** notifyListener
+  //**************************************************************************
+    private void notifyListener(){
+        ProgressListener listener = this.listener;
+        if (listener!=null){
+            listener.onProgress(zoom, completed.get(), total, getTilesPerSecond());
+        }
+    }
+
+
+  //**************************************************************************
+  //** getZoom
+  //**************************************************************************
+  /** Returns the zoom level currently being rendered
+   */
+    public int getZoom(){
+        return zoom;
+    }
+
+
+  //**************************************************************************
+  //** getTilesCompleted
+  //**************************************************************************
+  /** Returns the number of tiles rendered for the current zoom level
+   */
+    public long getTilesCompleted(){
+        return completed.get();
+    }
+
+
+  //**************************************************************************
+  //** getTotalTiles
+  //**************************************************************************
+  /** Returns the total number of tiles for the current zoom level
+   */
+    public long getTotalTiles(){
+        return total;
+    }
+
+
+  //**************************************************************************
+  //** getTilesFailed
+  //**************************************************************************
+  /** Returns the number of tiles that could not be rendered
+   */
+    public long getTilesFailed(){
+        return failed.get();
+    }
+
+
+  //**************************************************************************
+  //** getTilesPerSecond
+  //**************************************************************************
+  /** Returns the average number of tiles rendered per second since seed()
+   *  was called
+   */
+    public double getTilesPerSecond(){
+        long elapsed = System.currentTimeMillis()-startTime;
+        if (elapsed<=0) return 0;
+        return rendered.get()/(elapsed/1000.0);
+    }
+
+
+  //**************************************************************************
+  //** readCheckpoint
+  //**************************************************************************
+  /** Returns the zoom level and tile index saved in the checkpoint file.
+   *  Returns null if the checkpoint was created for a different job.
+   */
+    private long[] readCheckpoint() throws IOException {
+        if (checkpoint==null || !Files.exists(checkpoint)) return null;
+        String str = new String(Files.readAllBytes(checkpoint), StandardCharsets.UTF_8).trim();
+        String[] arr = str.split(",");
+        if (arr.length!=3 || !arr[2].equals(job)) return null;
+        try{
+            return new long[]{Long.parseLong(arr[0]), Long.parseLong(arr[1])};
+        }
+        catch(NumberFormatException e){
+            return null;
+        }
+    }
+
+
+  //**************************************************************************
+  //** writeCheckpoint
+  //**************************************************************************
+  /** Used to save the zoom level and index of the next tile to render. If a
+   *  tile failed to render, the checkpoint is not advanced past that tile.
+   */
+    private void writeCheckpoint(int z, long index) throws IOException {
+        if (checkpoint==null) return;
+        synchronized(this){
+            if (failedZoom>=0 && (z>failedZoom || (z==failedZoom && index>failedIndex))){
+                z = failedZoom;
+                index = failedIndex;
+            }
+        }
+        Path dir = checkpoint.toAbsolutePath().getParent();
+        if (dir!=null) Files.createDirectories(dir);
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.write(tmp, (z + "," + index + "," + job).getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+
+  //**************************************************************************
+  //** getJob
+  //**************************************************************************
+  /** Returns a string used to identify a seeding job in a checkpoint file.
+   *  Includes the zoom range and a 64-bit hash of the layer and geometry.
+   */
+    private String getJob(Geometry geom, int minZoom, int maxZoom){
+        String str = layer + "|" + geom.toText();
+        long h = 0xcbf29ce484222325L; //FNV-1a
+        for (int i=0; i<str.length(); i++){
+            h ^= str.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return minZoom + "-" + maxZoom + ":" + Long.toHexString(h);
+    }
+}
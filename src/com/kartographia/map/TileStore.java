@@ -0,0 +1,87 @@
+package com.kartographia.map;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+//******************************************************************************
+//**  TileStore
+//******************************************************************************
+/**
+ *   Used to persist encoded image tiles for a TileCache. Tiles are identified
+ *   by a unique key (e.g. "{layer}/{z}/{x}/{y}"). A tile with zero bytes
+ *   represents an empty tile. Implementations must be thread-safe.
+ *
+ ******************************************************************************/
+
+public interface TileStore {
+
+
+  /** Returns true if the store contains a tile for the given key
+   */
+    public boolean exists(String key);
+
+
+  /** Returns the encoded image for a given key or null if the store does not
+   *  contain a tile for the key. The returned buffer should be treated as
+   *  read-only.
+   */
+    public ByteBuffer read(String key) throws IOException;
+
+
+  /** Used to write the encoded image for a given key directly to a channel
+   *  (e.g. a socket or servlet output channel). Implementations should avoid
+   *  copying the image into the Java heap where possible. Returns the number
+   *  of bytes written or -1 if the store does not contain a tile for the key.
+   *  Fewer bytes may be written if the target is a non-blocking channel that
+   *  cannot accept any more bytes.
+   */
+    public default long transferTo(String key, WritableByteChannel target) throws IOException {
+        ByteBuffer buffer = read(key);
+        if (buffer==null) return -1;
+        buffer = buffer.duplicate();
+        long n = 0;
+        while (buffer.hasRemaining()){
+            int t = target.write(buffer);
+            if (t<=0) break;
+            n += t;
+        }
+        return n;
+    }
+
+
+  /** Used to transfer a range of bytes from a file channel to a target
+   *  channel using FileChannel.transferTo(). Returns the number of bytes
+   *  transferred. Stops early if the end of the file is reached or if the
+   *  target is a non-blocking channel that cannot accept any more bytes.
+   */
+    public static long transferTo(FileChannel channel, long position, long length,
+        WritableByteChannel target) throws IOException {
+        long end = Math.min(position+length, channel.size());
+        long n = 0;
+        while (position+n<end){
+            long t = channel.transferTo(position+n, end-position-n, target);
+            if (t<=0) break;
+            n += t;
+        }
+        return n;
+    }
+
+
+  /** Used to add or replace a tile in the store
+   *  @param bytes Encoded image. An empty array is used to represent an
+   *  empty tile.
+   */
+    public void write(String key, byte[] bytes) throws IOException;
+
+
+  /** Used to remove a tile from the store
+   */
+    public void delete(String key) throws IOException;
+
+
+  /** Used to release any resources associated with the store
+   */
+    public void close() throws IOException;
+
+}